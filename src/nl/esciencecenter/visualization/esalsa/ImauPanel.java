@@ -553,6 +553,9 @@ public class ImauPanel extends NeonInterfacePanel {
                     public void stateChanged(ChangeEvent e) {
                         final JSlider source = (JSlider) e.getSource();
                         if (source.hasFocus()) {
+                            // Get all depths of the current timestep in
+                            // memory while the user is still dragging.
+                            timer.prefetchDepthColumns();
                             settings.setDepth(source.getValue());
                             depthSetting.setText("" + settings.getDepthDef());
                         }
@@ -28,6 +28,15 @@ public class ImauSettings {
         Jan, Feb, Mar, Apr, May, Jun, Jul, Aug, Sep, Oct, Nov, Dec
     };
 
+    /**
+     * How the value bounds of variables without predefined bounds are found:
+     * exactly by reading all of the data, from a quick sample only, or from a
+     * quick sample that is replaced by the exact bounds once those are known.
+     */
+    public enum BoundsMode {
+        EXACT, SAMPLED, SAMPLED_THEN_EXACT
+    };
+
     private boolean STEREO_RENDERING = true;
     private boolean STEREO_SWITCHED = true;
 
@@ -125,6 +134,23 @@ public class ImauSettings {
 
     private boolean requestedNewConfiguration;
 
+    // Settings for reading and caching of the NetCDF data
+    private int MAX_OPEN_NETCDF_FILES = 64;
+    private BoundsMode BOUNDS_MODE = BoundsMode.SAMPLED_THEN_EXACT;
+    private boolean DEPTH_COLUMN_READS = false;
+    private int DEPTH_SLAB_CACHE_SIZE_MB = 256;
+    private int CHUNK_CACHE_SIZE_MB = 64;
+    private int FRAME_CACHE_SIZE_MB = 512;
+    private int OFF_HEAP_FRAME_CACHE_SIZE_MB = 0;
+    private int PIXEL_CACHE_SIZE_MB = 256;
+    private int PREFETCH_FRAMES = 8;
+    private int FETCH_IO_THREADS = 4;
+    private int FETCH_CPU_THREADS = 0;
+    private boolean FLAT_FRAME_STORE = false;
+    private boolean WATCH_DIRECTORIES = true;
+    private boolean REGRID_CURVILINEAR = true;
+    private String AGGREGATED_VARIABLES = "";
+
     private ImauSettings() {
         super();
 
@@ -188,6 +214,29 @@ public class ImauSettings {
 
             System.out.println(IMAGE_STREAM_OUTPUT ? "true" : "false");
 
+            // Settings for reading and caching of the NetCDF data
+            MAX_OPEN_NETCDF_FILES = props.getIntProperty("MAX_OPEN_NETCDF_FILES", MAX_OPEN_NETCDF_FILES);
+            String boundsMode = props.getProperty("BOUNDS_MODE", BOUNDS_MODE.name()).trim();
+            try {
+                BOUNDS_MODE = BoundsMode.valueOf(boundsMode);
+            } catch (IllegalArgumentException e) {
+                logger.warn("Unknown BOUNDS_MODE " + boundsMode + ", using " + BOUNDS_MODE);
+            }
+            DEPTH_COLUMN_READS = props.getBooleanProperty("DEPTH_COLUMN_READS", DEPTH_COLUMN_READS);
+            DEPTH_SLAB_CACHE_SIZE_MB = props.getIntProperty("DEPTH_SLAB_CACHE_SIZE_MB", DEPTH_SLAB_CACHE_SIZE_MB);
+            CHUNK_CACHE_SIZE_MB = props.getIntProperty("CHUNK_CACHE_SIZE_MB", CHUNK_CACHE_SIZE_MB);
+            FRAME_CACHE_SIZE_MB = props.getIntProperty("FRAME_CACHE_SIZE_MB", FRAME_CACHE_SIZE_MB);
+            OFF_HEAP_FRAME_CACHE_SIZE_MB = props.getIntProperty("OFF_HEAP_FRAME_CACHE_SIZE_MB",
+                    OFF_HEAP_FRAME_CACHE_SIZE_MB);
+            PIXEL_CACHE_SIZE_MB = props.getIntProperty("PIXEL_CACHE_SIZE_MB", PIXEL_CACHE_SIZE_MB);
+            PREFETCH_FRAMES = props.getIntProperty("PREFETCH_FRAMES", PREFETCH_FRAMES);
+            FETCH_IO_THREADS = props.getIntProperty("FETCH_IO_THREADS", FETCH_IO_THREADS);
+            FETCH_CPU_THREADS = props.getIntProperty("FETCH_CPU_THREADS", FETCH_CPU_THREADS);
+            FLAT_FRAME_STORE = props.getBooleanProperty("FLAT_FRAME_STORE", FLAT_FRAME_STORE);
+            WATCH_DIRECTORIES = props.getBooleanProperty("WATCH_DIRECTORIES", WATCH_DIRECTORIES);
+            REGRID_CURVILINEAR = props.getBooleanProperty("REGRID_CURVILINEAR", REGRID_CURVILINEAR);
+            AGGREGATED_VARIABLES = props.getProperty("AGGREGATED_VARIABLES", AGGREGATED_VARIABLES);
+
             // minValues.put("SSH", props.getFloatProperty("MIN_SSH"));
             // maxValues.put("SSH", props.getFloatProperty("MAX_SSH"));
             // currentMinValues.put("SSH",
@@ -944,7 +993,7 @@ public class ImauSettings {
         if (currentDiffMinValues.containsKey(key)) {
             value = currentDiffMinValues.get(key);
         } else {
-            value = minValues.get(key);
+            value = getVarMin(key);
         }
 
         return value;
@@ -955,7 +1004,7 @@ public class ImauSettings {
         if (currentDiffMaxValues.containsKey(key)) {
             value = currentDiffMaxValues.get(key);
         } else {
-            value = maxValues.get(key);
+            value = getVarMax(key);
         }
 
         return value;
@@ -966,7 +1015,7 @@ public class ImauSettings {
         if (currentMinValues.containsKey(key)) {
             value = currentMinValues.get(key);
         } else {
-            value = minValues.get(key);
+            value = getVarMin(key);
         }
 
         return value;
@@ -977,7 +1026,7 @@ public class ImauSettings {
         if (currentMaxValues.containsKey(key)) {
             value = currentMaxValues.get(key);
         } else {
-            value = maxValues.get(key);
+            value = getVarMax(key);
         }
 
         return value;
@@ -1068,4 +1117,71 @@ public class ImauSettings {
     public synchronized void setNumberOfScreenshotsPerTimeStep(int numberOfScreenshotsPerTimeStep) {
         this.numberOfScreenshotsPerTimeStep = numberOfScreenshotsPerTimeStep;
     }
+
+    public synchronized int getMaxOpenNetcdfFiles() {
+        return MAX_OPEN_NETCDF_FILES;
+    }
+
+    public synchronized BoundsMode getBoundsMode() {
+        return BOUNDS_MODE;
+    }
+
+    public synchronized boolean isDepthColumnReads() {
+        return DEPTH_COLUMN_READS;
+    }
+
+    public synchronized int getDepthSlabCacheSizeMB() {
+        return DEPTH_SLAB_CACHE_SIZE_MB;
+    }
+
+    public synchronized int getChunkCacheSizeMB() {
+        return CHUNK_CACHE_SIZE_MB;
+    }
+
+    public synchronized int getFrameCacheSizeMB() {
+        return FRAME_CACHE_SIZE_MB;
+    }
+
+    public synchronized int getOffHeapFrameCacheSizeMB() {
+        return OFF_HEAP_FRAME_CACHE_SIZE_MB;
+    }
+
+    public synchronized int getPixelCacheSizeMB() {
+        return PIXEL_CACHE_SIZE_MB;
+    }
+
+    public synchronized int getPrefetchFrames() {
+        return PREFETCH_FRAMES;
+    }
+
+    public synchronized int getFetchIOThreads() {
+        return FETCH_IO_THREADS;
+    }
+
+    public synchronized int getFetchCPUThreads() {
+        return FETCH_CPU_THREADS;
+    }
+
+    public synchronized boolean isFlatFrameStore() {
+        return FLAT_FRAME_STORE;
+    }
+
+    public synchronized boolean isWatchDirectories() {
+        return WATCH_DIRECTORIES;
+    }
+
+    public synchronized boolean isRegridCurvilinear() {
+        return REGRID_CURVILINEAR;
+    }
+
+    /**
+     * @return the specifications of the aggregated variables to add, each
+     *         &lt;variable&gt;:&lt;kind&gt;[:&lt;parameter&gt;].
+     */
+    public synchronized String[] getAggregatedVariables() {
+        if (AGGREGATED_VARIABLES.trim().isEmpty()) {
+            return new String[0];
+        }
+        return AGGREGATED_VARIABLES.trim().split("\\s*,\\s*");
+    }
 }
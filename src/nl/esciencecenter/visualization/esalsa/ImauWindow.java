@@ -100,6 +100,7 @@ public class ImauWindow implements GLEventListener {
     private final Texture2D[] cachedLegendTextures;
 
     private final float[] texLonOffsets;
+    private final boolean[] loadingShown;
     private final float[] topTexCoords;
     private final float[] bottomTexCoords;
 	private Texture2D[] cachedLatTexMap;
@@ -124,6 +125,7 @@ public class ImauWindow implements GLEventListener {
         cachedLegendTextures = new Texture2D[cachedScreens];
 
         texLonOffsets = new float[cachedScreens];
+        loadingShown = new boolean[cachedScreens];
         topTexCoords = new float[cachedScreens];
         bottomTexCoords = new float[cachedScreens];
         cachedLatTexMap = new Texture2D[cachedScreens];
@@ -276,6 +278,16 @@ public class ImauWindow implements GLEventListener {
                         }
                     }
                 }
+
+                // Variables are set up the first time they are shown, which
+                // may take a while. Let the user know what we are waiting for.
+                if (!timer.isVariableActivated(currentDesc.getVarName()) && !loadingShown[screenNumber]) {
+                    varNames[screenNumber].setString(gl,
+                            "Loading " + timer.getVariableDescription(currentDesc.getVarName()) + "...",
+                            Color4.WHITE, fontSize);
+                    loadingShown[screenNumber] = true;
+                }
+
                 // We are waiting for images to be generated
                 return false;
             } else {
@@ -291,6 +303,7 @@ public class ImauWindow implements GLEventListener {
 
                     cachedSurfaceTextures[screenNumber].init(gl);
                     cachedLegendTextures[screenNumber].init(gl);
+                    loadingShown[screenNumber] = false;
                     
                     float offset = 0;
                     if (currentDesc.getVarName().compareTo("PREC") ==0 || currentDesc.getVarName().compareTo("PRECC") ==0|| currentDesc.getVarName().compareTo("PRECL") ==0 || currentDesc.getVarName().compareTo("V") ==0 || currentDesc.getVarName().compareTo("U") ==0){
@@ -4,11 +4,18 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.media.opengl.GL;
 import javax.media.opengl.GL3;
@@ -18,9 +25,13 @@ import nl.esciencecenter.neon.swing.ColormapInterpreter.Dimensions;
 import nl.esciencecenter.visualization.esalsa.ImauSettings;
 import nl.esciencecenter.visualization.esalsa.JOCLColormapper;
 import nl.esciencecenter.visualization.esalsa.Texture2D;
+import nl.esciencecenter.visualization.esalsa.data.reworked.Grid;
+import nl.esciencecenter.visualization.esalsa.data.reworked.GridRegistry;
+import nl.esciencecenter.visualization.esalsa.data.reworked.NCDFCatalogFile;
 import nl.esciencecenter.visualization.esalsa.data.reworked.NCDFDataSet;
 import nl.esciencecenter.visualization.esalsa.data.reworked.NCDFVariable;
 import nl.esciencecenter.visualization.esalsa.data.reworked.NoSuchSequenceNumberException;
+import nl.esciencecenter.visualization.esalsa.data.reworked.Regridder;
 import nl.esciencecenter.visualization.esalsa.data.reworked.VariableNotCompatibleException;
 
 import org.slf4j.Logger;
@@ -32,68 +43,32 @@ public class DatasetManager {
     private final static Logger logger = LoggerFactory.getLogger(DatasetManager.class);
     private final ImauSettings settings = ImauSettings.getInstance();
 
-    private final List<NCDFDataSet> datasets;
-    private final ExecutorService executor;
-    private final List<Double> masterTimeList;
-
-    private final LinkedList<CachedData> cachedData;
-
-    private class CachedData {
-        private final String varname;
-        private final int frameNumber;
-        private final int depth;
-
-        private float[] data;
-
-        public CachedData(SurfaceTextureDescription desc, float[] data) {
-            varname = desc.varName;
-            frameNumber = desc.frameNumber;
-            depth = desc.depth;
-
-            data = data;
-        }
-
-        public synchronized String getVarname() {
-            return varname;
-        }
-
-        public synchronized int getFrameNumber() {
-            return frameNumber;
-        }
-
-        public synchronized int getDepth() {
-            return depth;
-        }
-
-        public synchronized float[] getData() {
-            return data;
-        }
-
-        @Override
-        public int hashCode() {
-            int variablePrime = (varname.hashCode() + 67) * 859;
-            int frameNumberPrime = (int) ((frameNumber + 131) * 1543);
-            int depthPrime = (depth + 251) * 2957;
-
-            int hashCode = frameNumberPrime + depthPrime + variablePrime;
-
-            return hashCode;
-        }
-
-        @Override
-        public boolean equals(Object thatObject) {
-            if (this == thatObject)
-                return true;
-            if (!(thatObject instanceof CachedData))
-                return false;
-
-            // cast to native object is now safe
-            CachedData that = (CachedData) thatObject;
+    // How long shutting down waits for reads that are in progress.
+    private final static long SHUTDOWN_TIMEOUT_SECONDS = 30;
 
-            // now a proper field-by-field evaluation can be made
-            return (varname.compareTo(that.varname) == 0 && frameNumber == that.frameNumber && depth == that.depth);
-        }
-    }
+    private final List<NCDFDataSet> datasets;
+    private final Map<String, NCDFDataSet> datasetsByFilesetKey;
+    private final FetchScheduler scheduler;
+    // Replaced as a whole (never modified) when new files come in, so the
+    // workers can read it without locking.
+    private volatile TimeAxis masterTimeAxis;
+    private volatile VariableIndex variableIndex;
+    private final NCDFCatalogFile catalogFile;
+    private final GridRegistry gridRegistry;
+    private final Map<Grid, Regridder> regridders;
+    private final SingleFlight<Grid, Regridder> regridderFlights;
+    private final DerivedVariableEngine derivedVariableEngine;
+
+    private final FrameCache frameCache;
+    private final SingleFlight<FrameCache.Key, float[]> dataFlights;
+    private final PixelCache pixelCache;
+    private final FramePrefetcher framePrefetcher;
+    private final Set<String> pendingColumnPrefetches;
+
+    // What each screen should show now, and the work (of either stage) on its
+    // way to it.
+    private final Map<Integer, SurfaceTextureDescription> requestedDescs;
+    private final Map<Integer, List<Future<?>>> screenFutures;
 
     private class TexturedataStorage {
         private final int width;
@@ -123,120 +98,397 @@ public class DatasetManager {
     private final JOCLColormapper mapper;
     private final List<TexturedataStorage> textureDatastorageList;
 
-    private class Worker implements Runnable {
+    /**
+     * Makes the image of a description in two stages: reading its data (on
+     * the I/O pool of the scheduler), then regridding and colormapping it (on
+     * the compute pool), after which it is handed to the texture storage of
+     * the screen it is for (if any). Either stage stops if that screen wants
+     * something else by then.
+     */
+    private class Worker {
+        private final int screenNumber;
         private final SurfaceTextureDescription desc;
+        private final FetchScheduler.Priority priority;
+        // Run when the image has been made, may be null.
+        private final Runnable imageMade;
 
-        public Worker(SurfaceTextureDescription desc) {
-            this.desc = desc;
+        public Worker(int screenNumber, SurfaceTextureDescription desc, FetchScheduler.Priority priority) {
+            this(screenNumber, desc, priority, null);
         }
 
-        @Override
-        public void run() {
-            String varName = desc.getVarName();
-
-            try {
-                NCDFDataSet dataset = findDataset(varName);
-                NCDFVariable ncdfVar = dataset.getVariable(varName);
+        public Worker(int screenNumber, SurfaceTextureDescription desc, FetchScheduler.Priority priority,
+                Runnable imageMade) {
+            this.screenNumber = screenNumber;
+            this.desc = desc;
+            this.priority = priority;
+            this.imageMade = imageMade;
+        }
 
-                Dimensions colormapDims = new Dimensions(settings.getCurrentVarMin(varName),
-                        settings.getCurrentVarMax(varName));
+        /**
+         * @return the future of the first stage.
+         */
+        public Future<?> start() {
+            return scheduler.submit(FetchScheduler.Stage.IO, priority, new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            });
+        }
 
-                float[] surfaceArray = getDataCached(desc, ncdfVar);
+        /**
+         * The first stage, on the thread of the caller.
+         *
+         * @return whether the data could be read.
+         */
+        public boolean read() {
+            if (isStale(screenNumber, desc)) {
+                return false;
+            }
 
-                int[] pixelArray = mapper.makeImage(desc.getColorMap(), colormapDims, surfaceArray,
-                        ncdfVar.getFillValue(), desc.isLogScale(), ncdfVar.getLonDimensionSize(),
-                        ncdfVar.getLatDimensionSize());
+            String varName = desc.getVarName();
+            try {
+                VariableIndex index = variableIndex;
+                final NCDFVariable ncdfVar = activateVariables(desc, index);
+                final Dimensions colormapDims = getColormapDims(desc);
+
+                // Shown recently with the same colormap and range, so there
+                // is nothing left to do.
+                PixelCache.Image image = pixelCache.get(desc, colormapDims);
+                if (image != null) {
+                    publish(ncdfVar, image);
+                    return true;
+                }
 
-                ByteBuffer legendBuf = mapper.getColormapForLegendTexture(desc.getColorMap());
+                final float[] surfaceArray = getDataCached(desc, index, priority);
+                if (surfaceArray == null) {
+                    return false;
+                }
 
-                for (TexturedataStorage tds : textureDatastorageList) {
-                    if (tds.getWidth() == ncdfVar.getLonDimensionSize()
-                            && tds.getHeight() == ncdfVar.getLatDimensionSize()) {
-                        float topTexCoord = .5f + 0.5f*(ncdfVar.getMaxLatitude() / 90f);
-                        float bottomTexCoord = .5f - 0.5f*(ncdfVar.getMinLatitude() / -90f);
-//                         System.out.println("topTexCoord: " + topTexCoord);
-//                         System.out.println("bottomTexCoord: " + bottomTexCoord);
-                        tds.getTexStorage().setImageCombo(desc, pixelArray, legendBuf, topTexCoord, bottomTexCoord);
+                Future<?> colormapping = scheduler.submit(FetchScheduler.Stage.CPU, priority, new Runnable() {
+                    @Override
+                    public void run() {
+                        colormap(ncdfVar, surfaceArray, colormapDims);
                     }
-                }
+                });
+                addScreenFuture(screenNumber, desc, colormapping);
+                return true;
             } catch (DatasetNotFoundException e) {
                 e.printStackTrace();
+            } catch (IOException e) {
+                logger.warn("Could not activate " + varName + ": " + e.getMessage());
             }
+            return false;
         }
 
-        private float[] getDataCached(SurfaceTextureDescription desc, NCDFVariable ncdfVar) {
-            float[] result = new float[0];
-            if (cachedData.contains(desc)) {
-                return cachedData.get(cachedData.indexOf(desc)).getData();
-            } else {
-                double time = masterTimeList.get(desc.getFrameNumber());
-                int requestedDepth = desc.getDepth();
-                try {
-                    result = ncdfVar.getData(time, requestedDepth);
-                    cachedData.addLast(new CachedData(desc, result));
-                    while (cachedData.size() > (settings.getNumScreensCols() * settings.getNumScreensRows())) {
-                        cachedData.removeFirst();
-                    }
-                    return result;
-                } catch (NoSuchSequenceNumberException | InvalidRangeException | IOException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
+        private void colormap(NCDFVariable ncdfVar, float[] surfaceArray, Dimensions colormapDims) {
+            // The data is in the frame cache now, but is no use to colormap
+            // if nobody is going to see it.
+            if (isStale(screenNumber, desc)) {
+                return;
+            }
+            PixelCache.Image image;
+            try {
+                image = makeImage(desc, ncdfVar, surfaceArray, colormapDims, priority);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (imageMade != null) {
+                imageMade.run();
+            }
+            publish(ncdfVar, image);
+        }
+
+        private void publish(NCDFVariable ncdfVar, PixelCache.Image image) {
+            if (screenNumber < 0) {
+                return;
+            }
+            // The texture storage knows the description by the instance it
+            // asked for last, which may be an equal one made after this work
+            // started.
+            SurfaceTextureDescription requested = requestedDescs.get(screenNumber);
+            if (!desc.equals(requested)) {
+                return;
+            }
+
+            ByteBuffer legendBuf = mapper.getColormapForLegendTexture(desc.getColorMap());
+            for (TexturedataStorage tds : textureDatastorageList) {
+                if (tds.getWidth() == ncdfVar.getLonDimensionSize()
+                        && tds.getHeight() == ncdfVar.getLatDimensionSize()) {
+                    tds.getTexStorage().setImageCombo(requested, image.getPixels(), legendBuf,
+                            image.getTopTexCoord(), image.getBottomTexCoord());
                 }
             }
+        }
+    }
 
-            return result;
+    /**
+     * Make sure the variables of the description are fully set up (bounds
+     * and all), which only happens the first time they are shown.
+     *
+     * @return the variable the data of the description comes from.
+     */
+    private NCDFVariable activateVariables(SurfaceTextureDescription desc, VariableIndex index)
+            throws DatasetNotFoundException, IOException {
+        String varName = desc.getVarName();
+        VariableIndex.Entry entry = index.get(varName);
+        NCDFVariable ncdfVar = entry.getVariable();
+
+        entry.getDataset().activateVariable(varName);
+        if (desc.isDiff() || desc.isSecondSet()) {
+            VariableIndex.Entry otherEntry = index.getOther(varName);
+            otherEntry.getDataset().activateVariable(varName);
+            if (!desc.isDiff()) {
+                ncdfVar = otherEntry.getVariable();
+            }
         }
+        return ncdfVar;
+    }
 
+    /**
+     * @return whether the screen has been given something else to show since
+     *         the description was requested for it (while scrubbing through
+     *         time, for example). Work for other screens (-1) is never stale.
+     */
+    private boolean isStale(int screenNumber, SurfaceTextureDescription desc) {
+        return screenNumber >= 0 && !desc.equals(requestedDescs.get(screenNumber));
     }
 
-    public DatasetManager(File[] files) {
-        cachedData = new LinkedList<CachedData>();
-        executor = Executors.newFixedThreadPool(4);
+    /**
+     * Keep the future of work for the screen, so it can be dropped when the
+     * screen is given something else to show. If that already happened, the
+     * work is dropped right away.
+     */
+    private synchronized void addScreenFuture(int screenNumber, SurfaceTextureDescription desc, Future<?> future) {
+        if (screenNumber < 0) {
+            return;
+        }
+        if (isStale(screenNumber, desc)) {
+            future.cancel(false);
+            return;
+        }
 
-        masterTimeList = new ArrayList<Double>();
-        textureDatastorageList = new ArrayList<TexturedataStorage>();
+        List<Future<?>> futures = screenFutures.get(screenNumber);
+        if (futures == null) {
+            futures = new ArrayList<Future<?>>();
+            screenFutures.put(screenNumber, futures);
+        }
+        // Forget the work that is done, so the list does not grow.
+        Iterator<Future<?>> it = futures.iterator();
+        while (it.hasNext()) {
+            if (it.next().isDone()) {
+                it.remove();
+            }
+        }
+        futures.add(future);
+    }
+
+    private Dimensions getColormapDims(SurfaceTextureDescription desc) {
+        String varName = desc.getVarName();
+        if (desc.isDiff()) {
+            return new Dimensions(settings.getCurrentVarDiffMin(varName), settings.getCurrentVarDiffMax(varName));
+        }
+        return new Dimensions(settings.getCurrentVarMin(varName), settings.getCurrentVarMax(varName));
+    }
 
-        List<List<File>> filesets = new ArrayList<List<File>>();
-        List<File> firstFileset = new ArrayList<File>();
-        firstFileset.add(files[0]);
-        filesets.add(firstFileset);
-
-        // start comparing from the second file onwards.
-        for (int i = 1; i < files.length; i++) {
-            boolean fileSetFound = false;
-            for (List<File> currentFileset : filesets) {
-                // extract all NON_NUMBER parts from the filename and compare
-                // them to see if this is the same dataset
-                String[] stringsRef = currentFileset.get(0).getName().split("(?=[0-9])([0-9]*)");
-                String[] strings1 = files[i].getName().split("(?=[0-9])([0-9]*)");
-                boolean sameExceptForNumbers = true;
-                for (int j = 0; j < strings1.length; j++) {
-                    if (strings1[j].compareTo(stringsRef[j]) != 0) {
-                        sameExceptForNumbers = false;
+    /**
+     * Regrid (if needed) and colormap the data of the description, and keep
+     * the result in the pixel cache.
+     */
+    private PixelCache.Image makeImage(SurfaceTextureDescription desc, NCDFVariable ncdfVar, float[] surfaceArray,
+            Dimensions colormapDims, FetchScheduler.Priority priority) throws InterruptedException {
+        float minLatitude = ncdfVar.getMinLatitude();
+        float maxLatitude = ncdfVar.getMaxLatitude();
+
+        // Curvilinear grids are drawn through a regular lat/lon grid of the
+        // same size, which covers the whole globe.
+        Regridder regridder = getRegridder(ncdfVar, priority);
+        if (regridder != null) {
+            surfaceArray = regridder.regrid(surfaceArray, ncdfVar.getFillValue(), scheduler, priority);
+            minLatitude = -90f;
+            maxLatitude = 90f;
+        }
+
+        int[] pixelArray = mapper.makeImage(desc.getColorMap(), colormapDims, surfaceArray, ncdfVar.getFillValue(),
+                desc.isLogScale(), ncdfVar.getLonDimensionSize(), ncdfVar.getLatDimensionSize());
+
+        float topTexCoord = .5f + 0.5f*(maxLatitude / 90f);
+        float bottomTexCoord = .5f - 0.5f*(minLatitude / -90f);
+//         System.out.println("topTexCoord: " + topTexCoord);
+//         System.out.println("bottomTexCoord: " + bottomTexCoord);
+        PixelCache.Image image = new PixelCache.Image(pixelArray, colormapDims, topTexCoord, bottomTexCoord);
+        pixelCache.put(desc, image);
+        return image;
+    }
+
+    private Regridder getRegridder(NCDFVariable ncdfVar, final FetchScheduler.Priority priority)
+            throws InterruptedException {
+        final Grid grid = ncdfVar.getGrid();
+        if (!settings.isRegridCurvilinear() || grid == null || !grid.isCurvilinear()) {
+            return null;
+        }
+
+        synchronized (regridders) {
+            Regridder regridder = regridders.get(grid);
+            if (regridder != null) {
+                return regridder;
+            }
+        }
+
+        // The weights are computed (or loaded) once per grid, without holding
+        // up the screens on other grids meanwhile.
+        try {
+            return regridderFlights.execute(grid, new Callable<Regridder>() {
+                @Override
+                public Regridder call() throws InterruptedException {
+                    synchronized (regridders) {
+                        Regridder regridder = regridders.get(grid);
+                        if (regridder != null) {
+                            return regridder;
+                        }
                     }
+                    Regridder regridder = Regridder.forGrid(grid, catalogFile.getDirectory(), scheduler, priority);
+                    synchronized (regridders) {
+                        regridders.put(grid, regridder);
+                    }
+                    return regridder;
                 }
+            });
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
 
-                if (sameExceptForNumbers) {
-                    logger.debug("Adding " + files[i].getName() + " to fileset: " + currentFileset.get(0).getName());
-                    currentFileset.add(files[i]);
-                    fileSetFound = true;
-                }
+    /**
+     * @return the data of the description, from the frame cache if it was
+     *         read before, or null if it could not be read.
+     */
+    private float[] getDataCached(SurfaceTextureDescription desc, VariableIndex index,
+            FetchScheduler.Priority priority) throws DatasetNotFoundException {
+        double time = masterTimeAxis.getTime(desc.getFrameNumber());
+        int dataMode = desc.getDataModeIndex();
+        float[] cached = frameCache.get(desc.getVarName(), dataMode, time, desc.getDepth());
+        if (cached != null) {
+            return cached;
+        }
+
+        // Screens that show the same data (with other colormaps or ranges)
+        // share a single read, only the colormapping is done per screen.
+        final SurfaceTextureDescription request = desc;
+        final VariableIndex requestIndex = index;
+        final double requestTime = time;
+        final FetchScheduler.Priority requestPriority = priority;
+        try {
+            return dataFlights.execute(new FrameCache.Key(desc.getVarName(), dataMode, time, desc.getDepth()),
+                    new Callable<float[]>() {
+                        @Override
+                        public float[] call() throws DatasetNotFoundException, NoSuchSequenceNumberException,
+                                InvalidRangeException, IOException {
+                            float[] result = derivedVariableEngine.getData(request, requestTime, requestIndex,
+                                    requestPriority);
+                            frameCache.put(request.getVarName(), request.getDataModeIndex(), requestTime,
+                                    request.getDepth(), result);
+                            return result;
+                        }
+                    });
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof DatasetNotFoundException) {
+                throw (DatasetNotFoundException) cause;
             }
-            if (!fileSetFound) {
-                logger.info("New fileset found: " + files[i].getName());
-                List<File> secondaryFileset = new ArrayList<File>();
-                secondaryFileset.add(files[i]);
-                filesets.add(secondaryFileset);
+            logger.warn("Could not read " + desc.getVarName() + " (" + desc.verbalizeDataMode() + "): "
+                    + cause.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return null;
+    }
+
+    /**
+     * Make the image of the description ahead of time, so it is in the
+     * caches by the time it is shown. Reads on the thread of the caller, the
+     * colormapping is scheduled as prefetch work.
+     *
+     * @param imageMade
+     *            run when the image has been made (not if it was in the
+     *            pixel cache already, or could not be made).
+     * @return whether the data of the description could be read.
+     */
+    boolean prefetchImage(SurfaceTextureDescription desc, Runnable imageMade) {
+        return new Worker(-1, desc, FetchScheduler.Priority.PREFETCH, imageMade).read();
+    }
+
+    public DatasetManager(File[] files) {
+        frameCache = new FrameCache(settings.getFrameCacheSizeMB() * 1024L * 1024L,
+                settings.getOffHeapFrameCacheSizeMB() * 1024L * 1024L);
+        pixelCache = new PixelCache(settings.getPixelCacheSizeMB() * 1024L * 1024L);
+        dataFlights = new SingleFlight<FrameCache.Key, float[]>();
+        scheduler = new FetchScheduler(settings.getFetchIOThreads(), settings.getFetchCPUThreads());
+        framePrefetcher = new FramePrefetcher(this, scheduler);
+        pendingColumnPrefetches = new HashSet<String>();
+        requestedDescs = new ConcurrentHashMap<Integer, SurfaceTextureDescription>();
+        screenFutures = new HashMap<Integer, List<Future<?>>>();
+
+        List<double[]> variableTimes = new ArrayList<double[]>();
+        textureDatastorageList = new ArrayList<TexturedataStorage>();
+
+        // Files that only differ in the numbers in their names belong to the
+        // same fileset.
+        LinkedHashMap<String, List<File>> filesets = new LinkedHashMap<String, List<File>>();
+        for (File file : files) {
+            String key = NCDFCatalogFile.getFilesetKey(file);
+            List<File> fileset = filesets.get(key);
+            if (fileset == null) {
+                logger.info("New fileset found: " + file.getName());
+                fileset = new ArrayList<File>();
+                filesets.put(key, fileset);
             }
+            fileset.add(file);
         }
 
         datasets = new ArrayList<NCDFDataSet>();
+        datasetsByFilesetKey = new HashMap<String, NCDFDataSet>();
+
+        // The catalog next to the data lets us skip opening all files that
+        // have not changed since the last session.
+        catalogFile = new NCDFCatalogFile(files[0].getAbsoluteFile().getParent());
+        catalogFile.load();
+
+        // Shared by all datasets, so variables on the same grid share it.
+        gridRegistry = new GridRegistry();
+        regridders = new HashMap<Grid, Regridder>();
+        regridderFlights = new SingleFlight<Grid, Regridder>();
+        derivedVariableEngine = new DerivedVariableEngine(scheduler);
+
+        // Scan all filesets at the same time, rather than one after the other.
+        List<Future<NCDFDataSet>> openedDatasets = new ArrayList<Future<NCDFDataSet>>();
+        for (final List<File> currentFileset : filesets.values()) {
+            logger.debug("Now opening dataset of " + currentFileset.size() + " files");
+            openedDatasets.add(scheduler.submit(FetchScheduler.Stage.IO, FetchScheduler.Priority.BACKGROUND,
+                    new Callable<NCDFDataSet>() {
+                        @Override
+                        public NCDFDataSet call() throws IOException, VariableNotCompatibleException {
+                            return new NCDFDataSet(currentFileset, catalogFile, gridRegistry, scheduler);
+                        }
+                    }));
+        }
 
-        for (List<File> currentFileset : filesets) {
+        Iterator<String> filesetKeys = filesets.keySet().iterator();
+        for (Future<NCDFDataSet> openedDataset : openedDatasets) {
+            String filesetKey = filesetKeys.next();
             try {
-                logger.debug("Now opening dataset");
-                NCDFDataSet currentDataset = new NCDFDataSet(currentFileset);
+                NCDFDataSet currentDataset = openedDataset.get();
                 datasets.add(currentDataset);
+                datasetsByFilesetKey.put(filesetKey, currentDataset);
 
                 for (String varName : currentDataset.getVariableNames()) {
                     NCDFVariable ncdfVar = currentDataset.getVariable(varName);
@@ -253,39 +505,269 @@ public class DatasetManager {
                         textureDatastorageList.add(new TexturedataStorage(this, varWidth, varHeight));
                     }
 
-                    List<Double> times = ncdfVar.getTimes();
-                    for (double time : times) {
-                        if (!masterTimeList.contains(time)) {
-                            masterTimeList.add(time);
-                        }
-                    }
-                    Collections.sort(masterTimeList);
+                    variableTimes.add(ncdfVar.getTimeArray());
                 }
-            } catch (IOException | VariableNotCompatibleException e) {
-                e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.getCause().printStackTrace();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
             }
         }
+        catalogFile.save();
+
+        publishVariableIndex();
+
+        // One merge of the (sorted) times of all variables.
+        masterTimeAxis = TimeAxis.merge(variableTimes);
 
         mapper = new JOCLColormapper();
     }
 
-    public synchronized void shutdown() {
-        mapper.dispose();
-        executor.shutdown();
+    /**
+     * Rebuild the name to variable index, and make it visible to all readers
+     * at once. Must be called whenever datasets (or their variables) change.
+     */
+    private synchronized void publishVariableIndex() {
+        variableIndex = VariableIndex.build(datasets);
+    }
+
+    /**
+     * Add newly written files to the datasets they belong to, and extend the
+     * list of frames with the timesteps in them. Files that do not belong to
+     * any of the open datasets are ignored.
+     */
+    public void addFiles(List<File> newFiles) {
+        LinkedHashMap<NCDFDataSet, List<File>> filesPerDataset = new LinkedHashMap<NCDFDataSet, List<File>>();
+        for (File file : newFiles) {
+            NCDFDataSet dataset = datasetsByFilesetKey.get(NCDFCatalogFile.getFilesetKey(file));
+            if (dataset == null) {
+                logger.info("Ignoring " + file.getName() + ", it does not belong to any of the open datasets.");
+                continue;
+            }
+            List<File> filesForDataset = filesPerDataset.get(dataset);
+            if (filesForDataset == null) {
+                filesForDataset = new ArrayList<File>();
+                filesPerDataset.put(dataset, filesForDataset);
+            }
+            filesForDataset.add(file);
+        }
+
+        for (Map.Entry<NCDFDataSet, List<File>> entry : filesPerDataset.entrySet()) {
+            NCDFDataSet dataset = entry.getKey();
+            logger.debug("Adding " + entry.getValue() + " to fileset: " + dataset.getFiles().get(0).getName());
+            dataset.appendFiles(entry.getValue(), catalogFile);
+
+            // Merge the (sorted) times of the variables into the master axis.
+            List<double[]> variableTimes = new ArrayList<double[]>();
+            for (String varName : dataset.getVariableNames()) {
+                variableTimes.add(dataset.getVariable(varName).getTimeArray());
+            }
+            synchronized (this) {
+                masterTimeAxis = masterTimeAxis.mergeWith(variableTimes);
+            }
+        }
+
+        // Images are known by their frame numbers, which may have shifted.
+        if (!filesPerDataset.isEmpty()) {
+            pixelCache.clear();
+        }
+        // Means over the new timesteps have changed at times already cached.
+        for (NCDFDataSet dataset : filesPerDataset.keySet()) {
+            if (dataset.hasVirtualVariables()) {
+                frameCache.clear();
+                break;
+            }
+        }
+
+        catalogFile.save();
+    }
+
+    public void shutdown() {
+        framePrefetcher.shutdown();
+        // Otherwise the queued analyses would all run before the scheduler
+        // stops.
+        synchronized (this) {
+            for (NCDFDataSet dataset : datasets) {
+                dataset.cancelBoundsAnalyses();
+            }
+        }
+        scheduler.shutdown();
+
+        // Without holding the lock, the work that is running may need it to
+        // finish.
+        try {
+            if (!scheduler.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Work still running after " + SHUTDOWN_TIMEOUT_SECONDS
+                        + " seconds, closing the datasets anyway.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-        while (!executor.isTerminated()) {
+        synchronized (this) {
+            // After the work is done, the colormapping uses the mapper.
+            mapper.dispose();
+            for (NCDFDataSet dataset : datasets) {
+                dataset.close();
+            }
+            gridRegistry.clear();
+            frameCache.clear();
+            pixelCache.clear();
         }
+        logger.debug("Reads shared between requests: " + dataFlights.getShared());
     }
 
-    public synchronized void buildImages(SurfaceTextureDescription desc) {
-        Runnable worker = new Worker(desc);
-        executor.execute(worker);
+    /**
+     * Tell the prefetcher which frame playback is showing now, so it can make
+     * the images of the frames after it.
+     */
+    public void frameShown(int frameNumber) {
+        framePrefetcher.frameShown(frameNumber, getNumFrames());
     }
 
-    public synchronized TextureStorage getTextureStorage(String varName) throws DatasetNotFoundException {
-        NCDFDataSet dataset = findDataset(varName);
+    /**
+     * Record what the screen should show now, and drop the work (of either
+     * stage) for what it was going to show if that has not started yet. Work
+     * that has started stops at its next stage.
+     */
+    public synchronized void setRequestedImage(int screenNumber, SurfaceTextureDescription desc) {
+        SurfaceTextureDescription previousDesc = requestedDescs.put(screenNumber, desc);
+        if (desc.equals(previousDesc)) {
+            // The work on its way is still wanted.
+            return;
+        }
 
-        NCDFVariable ncdfVar = dataset.getVariable(varName);
+        List<Future<?>> previous = screenFutures.remove(screenNumber);
+        if (previous != null) {
+            for (Future<?> future : previous) {
+                if (future.cancel(false)) {
+                    logger.debug("Dropped work for screen " + screenNumber + " before it started");
+                }
+            }
+        }
+    }
+
+    private synchronized boolean hasPendingWork(int screenNumber) {
+        List<Future<?>> futures = screenFutures.get(screenNumber);
+        if (futures != null) {
+            for (Future<?> future : futures) {
+                if (!future.isDone()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Start making the image of the description for the given screen.
+     */
+    public synchronized void buildImages(int screenNumber, SurfaceTextureDescription desc) {
+        boolean inProgress = desc.equals(requestedDescs.get(screenNumber)) && hasPendingWork(screenNumber);
+        setRequestedImage(screenNumber, desc);
+        if (inProgress) {
+            // Asked again for what is on its way already.
+            return;
+        }
+
+        // The screen the user works on goes before the others.
+        FetchScheduler.Priority priority = FetchScheduler.Priority.VISIBLE_SCREEN;
+        if (screenNumber == settings.getWindowSelection() - 1) {
+            priority = FetchScheduler.Priority.SELECTED_SCREEN;
+        }
+
+        addScreenFuture(screenNumber, desc, new Worker(screenNumber, desc, priority).start());
+    }
+
+    /**
+     * Start reading the whole depth column of the current timestep of every
+     * screen, so that moving through the depths afterwards only needs the
+     * depth slab cache. Screens that show the other run (or the difference)
+     * get the columns of the run(s) they read from.
+     */
+    public synchronized void prefetchDepthColumns() {
+        if (!settings.isDepthColumnReads()) {
+            return;
+        }
+
+        VariableIndex index = variableIndex;
+        for (int i = 0; i < settings.getNumScreensRows() * settings.getNumScreensCols(); i++) {
+            SurfaceTextureDescription desc = settings.getSurfaceDescription(i);
+            double time = masterTimeAxis.getTime(desc.getFrameNumber());
+            try {
+                if (desc.isDiff() || !desc.isSecondSet()) {
+                    prefetchDepthColumn(index.get(desc.getVarName()), time, "control");
+                }
+                if (desc.isDiff() || desc.isSecondSet()) {
+                    prefetchDepthColumn(index.getOther(desc.getVarName()), time, "other");
+                }
+            } catch (DatasetNotFoundException e) {
+                logger.debug(e.getMessage());
+            }
+        }
+    }
+
+    private void prefetchDepthColumn(VariableIndex.Entry entry, double time, String run) {
+        final NCDFVariable ncdfVar = entry.getVariable();
+        if (ncdfVar.getHeightDimensionSize() == 0) {
+            return;
+        }
+
+        if (!ncdfVar.isColumnCacheable()) {
+            logger.debug("Not reading ahead the columns of " + ncdfVar.getName()
+                    + ", they do not fit in the depth slab cache.");
+            return;
+        }
+
+        final int frameIndex = ncdfVar.getTimeIndex(time);
+        // Variables of different runs have the same name.
+        final String key = run + ":" + ncdfVar.getName() + ":" + frameIndex;
+        if (frameIndex < 0 || ncdfVar.isColumnCached(frameIndex) || !pendingColumnPrefetches.add(key)) {
+            return;
+        }
+
+        scheduler.submit(FetchScheduler.Stage.IO, FetchScheduler.Priority.PREFETCH, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ncdfVar.getColumn(frameIndex);
+                } catch (NoSuchSequenceNumberException | InvalidRangeException | IOException e) {
+                    logger.debug("Prefetch of " + key + " failed: " + e.getMessage());
+                } finally {
+                    synchronized (DatasetManager.this) {
+                        pendingColumnPrefetches.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the scheduler all reading and colormapping goes through, with
+     *         its queue depths per priority.
+     */
+    public FetchScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @return the cache of frame data, with its hit, miss and eviction counts.
+     */
+    public FrameCache getFrameCache() {
+        return frameCache;
+    }
+
+    /**
+     * @return the cache of finished images, with its hit, miss and eviction
+     *         counts.
+     */
+    public PixelCache getPixelCache() {
+        return pixelCache;
+    }
+
+    public TextureStorage getTextureStorage(String varName) throws DatasetNotFoundException {
+        NCDFVariable ncdfVar = variableIndex.get(varName).getVariable();
         for (TexturedataStorage tds : textureDatastorageList) {
             if (tds.getWidth() == ncdfVar.getLonDimensionSize() && tds.getHeight() == ncdfVar.getLatDimensionSize()) {
                 return tds.getTexStorage();
@@ -295,92 +777,79 @@ public class DatasetManager {
         return null;
     }
 
-    public synchronized int getPreviousFrameNumber(int frameNumber) throws IOException {
-        if (frameNumber < masterTimeList.size() - 1 && frameNumber > 0) {
+    public int getPreviousFrameNumber(int frameNumber) throws IOException {
+        if (frameNumber < masterTimeAxis.size() - 1 && frameNumber > 0) {
         	return frameNumber - 1;
         } else {
             throw new IOException("Given frame number not valid: " + frameNumber);
         }
     }
 
-    public synchronized int getNextFrameNumber(int frameNumber) throws IndexOutOfBoundsException, IOException {
-    	if (frameNumber < masterTimeList.size() - 2 && frameNumber >= 0) {
+    public int getNextFrameNumber(int frameNumber) throws IndexOutOfBoundsException, IOException {
+    	if (frameNumber < masterTimeAxis.size() - 2 && frameNumber >= 0) {
         	return frameNumber + 1;
         } else {
             throw new IOException("Given frame number not valid: " + frameNumber);
         }
     }
 
-    public synchronized int getNumFrames() {
-        return masterTimeList.size();
+    public int getNumFrames() {
+        return masterTimeAxis.size();
     }
 
-    public synchronized List<String> getVariables() {
-        List<String> varNamesFromAllDatasets = new ArrayList<String>();
-        for (NCDFDataSet ds : datasets) {
-            varNamesFromAllDatasets.addAll(ds.getVariableNames());
-        }
-        return varNamesFromAllDatasets;
+    /**
+     * @return the names of the variables in all datasets (unmodifiable).
+     */
+    public List<String> getVariables() {
+        return variableIndex.getNames();
+    }
+
+    /**
+     * @return whether the variable has been set up completely, which happens
+     *         the first time it is shown.
+     */
+    public boolean isVariableActivated(String varName) throws DatasetNotFoundException {
+        NCDFVariable ncdfVar = variableIndex.get(varName).getVariable();
+        return ncdfVar.isActivated();
     }
 
-    public synchronized String getVariableUnits(String varName) throws DatasetNotFoundException {
-        NCDFDataSet dataset = findDataset(varName);
-        NCDFVariable ncdfVar = dataset.getVariable(varName);
+    public String getVariableUnits(String varName) throws DatasetNotFoundException {
+        NCDFVariable ncdfVar = variableIndex.get(varName).getVariable();
         return ncdfVar.getUnits();
     }
 
-    public synchronized String getVariableTime(String varName, int frameNumber) throws DatasetNotFoundException {
-        NCDFDataSet dataset = findDataset(varName);
-        NCDFVariable ncdfVar = dataset.getVariable(varName);
-        return ncdfVar.getTime(masterTimeList.get(frameNumber));
+    public String getVariableTime(String varName, int frameNumber) throws DatasetNotFoundException {
+        NCDFVariable ncdfVar = variableIndex.get(varName).getVariable();
+        return ncdfVar.getTime(masterTimeAxis.getTime(frameNumber));
     }
 
-    public synchronized Texture2D getVariableLatTexMap(String varName, int frameNumber) throws DatasetNotFoundException {
-        NCDFDataSet dataset = findDataset(varName);
-        NCDFVariable ncdfVar = dataset.getVariable(varName); 
+    public Texture2D getVariableLatTexMap(String varName, int frameNumber) throws DatasetNotFoundException {
+        NCDFVariable ncdfVar = variableIndex.get(varName).getVariable(); 
         return ncdfVar.getLatTexMap();
     }
 
-    public synchronized Texture2D getVariableLonTexMap(String varName, int frameNumber) throws DatasetNotFoundException {
-        NCDFDataSet dataset = findDataset(varName);
-        NCDFVariable ncdfVar = dataset.getVariable(varName); 
+    public Texture2D getVariableLonTexMap(String varName, int frameNumber) throws DatasetNotFoundException {
+        NCDFVariable ncdfVar = variableIndex.get(varName).getVariable(); 
         return ncdfVar.getLonTexMap();
     }
 
 
 	public String getVariableDescription(String varName) throws DatasetNotFoundException {
-        NCDFDataSet dataset = findDataset(varName);
-        NCDFVariable ncdfVar = dataset.getVariable(varName);
+        NCDFVariable ncdfVar = variableIndex.get(varName).getVariable();
         return ncdfVar.getDescription();
 	}
 
-    public synchronized float getMinValueContainedInDataset(String varName) throws DatasetNotFoundException {
-        NCDFDataSet dataset = findDataset(varName);
-        NCDFVariable ncdfVar = dataset.getVariable(varName);
+    public float getMinValueContainedInDataset(String varName) throws DatasetNotFoundException {
+        NCDFVariable ncdfVar = variableIndex.get(varName).getVariable();
         return ncdfVar.getMinimumValue();
     }
 
-    public synchronized float getMaxValueContainedInDataset(String varName) throws DatasetNotFoundException {
-        NCDFDataSet dataset = findDataset(varName);
-        NCDFVariable ncdfVar = dataset.getVariable(varName);
+    public float getMaxValueContainedInDataset(String varName) throws DatasetNotFoundException {
+        NCDFVariable ncdfVar = variableIndex.get(varName).getVariable();
         return ncdfVar.getMaximumValue();
     }
 
     public int getFirstFrameNumber() {
         return 0;
     }
-
-    private NCDFDataSet findDataset(String varName) throws DatasetNotFoundException {
-        NCDFDataSet datasetThatContainsTheVariable = null;
-        for (NCDFDataSet ds : datasets) {
-            if (ds.getVariableNames().contains(varName)) {
-                datasetThatContainsTheVariable = ds;
-            }
-        }
-        if (datasetThatContainsTheVariable == null) {
-            throw new DatasetNotFoundException("What did you do? " + varName
-                    + " doesn't exist? This should not have happened.");
-        }
-        return datasetThatContainsTheVariable;
-    }
 }
@@ -0,0 +1,139 @@
+package nl.esciencecenter.visualization.esalsa.data;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import nl.esciencecenter.visualization.esalsa.ImauSettings;
+import nl.esciencecenter.visualization.esalsa.data.reworked.NCDFVariable;
+import nl.esciencecenter.visualization.esalsa.data.reworked.NoSuchSequenceNumberException;
+
+import ucar.ma2.InvalidRangeException;
+
+/**
+ * Produces the data of a screen in any of its data modes: the control run,
+ * the other run, or the difference between the two. For a difference, both
+ * runs are read at the same time (the other run as I/O work of the
+ * {@link FetchScheduler}, at the priority of the caller), so comparing runs
+ * costs about as much as a single read.
+ *
+ * The runs are matched by time. A time that is missing from the other run
+ * has no difference, and is skipped.
+ */
+public class DerivedVariableEngine {
+    private final ImauSettings settings = ImauSettings.getInstance();
+
+    private final FetchScheduler scheduler;
+
+    public DerivedVariableEngine(FetchScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the (lat, lon) data of the given description at the given time.
+     */
+    public float[] getData(SurfaceTextureDescription desc, double time, VariableIndex index,
+            FetchScheduler.Priority priority) throws DatasetNotFoundException, NoSuchSequenceNumberException,
+            InvalidRangeException, IOException {
+        String varName = desc.getVarName();
+        int depth = desc.getDepth();
+
+        if (!desc.isDiff()) {
+            if (desc.isSecondSet()) {
+                NCDFVariable other = index.getOther(varName).getVariable();
+                return fetch(other, getFrameIndex(other, time), depth);
+            }
+            NCDFVariable control = index.get(varName).getVariable();
+            return fetch(control, getFrameIndex(control, time), depth);
+        }
+
+        final NCDFVariable control = index.get(varName).getVariable();
+        final NCDFVariable other = index.getOther(varName).getVariable();
+        final int controlFrame = getFrameIndex(control, time);
+        final int otherFrame = getFrameIndex(other, time);
+        final int requestedDepth = depth;
+
+        Future<float[]> otherData = scheduler.submit(FetchScheduler.Stage.IO, priority, new Callable<float[]>() {
+            @Override
+            public float[] call() throws NoSuchSequenceNumberException, InvalidRangeException, IOException {
+                return fetch(other, otherFrame, requestedDepth);
+            }
+        });
+        float[] controlData;
+        try {
+            controlData = fetch(control, controlFrame, requestedDepth);
+        } catch (NoSuchSequenceNumberException | InvalidRangeException | IOException e) {
+            otherData.cancel(false);
+            throw e;
+        }
+
+        float[] result;
+        try {
+            // The caller is on the I/O pool itself. If the read of the other
+            // run did not get a thread yet, it is done here rather than
+            // waiting for one (which, with all threads waiting like this,
+            // would never come).
+            if (otherData.cancel(false)) {
+                result = fetch(other, otherFrame, requestedDepth);
+            } else {
+                result = otherData.get();
+            }
+        } catch (InterruptedException e) {
+            otherData.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + varName + " of the other run.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchSequenceNumberException) {
+                throw (NoSuchSequenceNumberException) cause;
+            } else if (cause instanceof InvalidRangeException) {
+                throw (InvalidRangeException) cause;
+            } else if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not read " + varName + " of the other run.", cause);
+        }
+
+        // The result goes into the array of the other run, which is ours.
+        difference(controlData, control.getFillValue(), result, other.getFillValue(), result);
+        return result;
+    }
+
+    private static int getFrameIndex(NCDFVariable variable, double time) throws NoSuchSequenceNumberException {
+        int frameIndex = variable.getTimeIndex(time);
+        if (frameIndex < 0 || frameIndex >= variable.getNumberOfTimeSteps()) {
+            throw new NoSuchSequenceNumberException("Time " + time + " of " + variable.getName()
+                    + " requested but not available.");
+        }
+        return frameIndex;
+    }
+
+    private float[] fetch(NCDFVariable variable, int frameIndex, int depth) throws NoSuchSequenceNumberException,
+            InvalidRangeException, IOException {
+        float[] result = new float[variable.getLatDimensionSize() * variable.getLonDimensionSize()];
+        // Columns are only read ahead when the depth is changed, see
+        // DatasetManager.prefetchDepthColumns. Otherwise only the slice that
+        // is needed is read.
+        if (!settings.isDepthColumnReads() || !variable.getCachedData(frameIndex, depth, result)) {
+            variable.getData(frameIndex, depth, result);
+        }
+        return result;
+    }
+
+    /**
+     * dst = control - other, for every cell where neither holds its fill
+     * value (or NaN). The other cells get the fill value of the control run.
+     * dst may be one of the inputs.
+     */
+    public static void difference(float[] control, float controlFill, float[] other, float otherFill, float[] dst) {
+        int length = Math.min(dst.length, Math.min(control.length, other.length));
+        for (int i = 0; i < length; i++) {
+            float a = control[i];
+            float b = other[i];
+            // NaN != NaN, so a - b is NaN for those and caught as well.
+            float d = a - b;
+            dst[i] = (a == controlFill || b == otherFill || d != d) ? controlFill : d;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package nl.esciencecenter.visualization.esalsa.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the directories of the opened files for new files that are written
+ * by a simulation that is still running. A new file is only handed to the
+ * listener once it is complete, that is, once its size and modification time
+ * have not changed for a while.
+ */
+public class DirectoryWatcher implements Runnable {
+    private final static Logger logger = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+    private static final long POLL_MILLIS = 1000;
+    private static final long SETTLE_MILLIS = 5000;
+
+    public interface Listener {
+        /**
+         * Called (from the watcher thread) with newly completed files.
+         */
+        void filesCompleted(List<File> files);
+    }
+
+    private static class PendingFile {
+        private long size;
+        private long lastModified;
+        private long lastChange;
+
+        public PendingFile(File file, long now) {
+            size = file.length();
+            lastModified = file.lastModified();
+            lastChange = now;
+        }
+
+        /**
+         * @return whether the file has stopped changing.
+         */
+        public boolean isSettled(File file, long now) {
+            if (file.length() != size || file.lastModified() != lastModified) {
+                size = file.length();
+                lastModified = file.lastModified();
+                lastChange = now;
+                return false;
+            }
+            return now - lastChange >= SETTLE_MILLIS;
+        }
+    }
+
+    private final WatchService watchService;
+    private final Listener listener;
+    private final Set<String> extensions;
+    private final Set<File> knownFiles;
+    private final Map<File, PendingFile> pendingFiles;
+
+    private volatile boolean running = true;
+
+    public DirectoryWatcher(File[] files, Listener listener) throws IOException {
+        this.listener = listener;
+
+        extensions = new HashSet<String>();
+        knownFiles = new HashSet<File>();
+        pendingFiles = new HashMap<File, PendingFile>();
+
+        watchService = FileSystems.getDefault().newWatchService();
+
+        Set<File> directories = new HashSet<File>();
+        for (File file : files) {
+            File absoluteFile = file.getAbsoluteFile();
+            knownFiles.add(absoluteFile);
+            extensions.add(getExtension(absoluteFile));
+            directories.add(absoluteFile.getParentFile());
+        }
+        for (File directory : directories) {
+            directory.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            logger.debug("Watching " + directory + " for new files.");
+        }
+    }
+
+    public void start() {
+        Thread thread = new Thread(this, "DirectoryWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        running = false;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.debug("IOException caught while closing watch service: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                long now = System.currentTimeMillis();
+
+                if (key != null) {
+                    Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            continue;
+                        }
+                        File file = directory.resolve((Path) event.context()).toFile().getAbsoluteFile();
+                        if (isCandidate(file) && !pendingFiles.containsKey(file)) {
+                            pendingFiles.put(file, new PendingFile(file, now));
+                        }
+                    }
+                    key.reset();
+                }
+
+                List<File> completed = new ArrayList<File>();
+                Iterator<Map.Entry<File, PendingFile>> it = pendingFiles.entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<File, PendingFile> entry = it.next();
+                    File file = entry.getKey();
+                    if (!file.exists()) {
+                        it.remove();
+                    } else if (entry.getValue().isSettled(file, now)) {
+                        it.remove();
+                        knownFiles.add(file);
+                        completed.add(file);
+                    }
+                }
+
+                if (!completed.isEmpty()) {
+                    Collections.sort(completed);
+                    logger.info("New files found: " + completed);
+                    // A batch that can not be added should not stop the
+                    // watching for the next ones.
+                    try {
+                        listener.filesCompleted(completed);
+                    } catch (RuntimeException e) {
+                        logger.error("Could not add new files " + completed + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        } catch (ClosedWatchServiceException e) {
+            // We were closed, nothing left to do.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isCandidate(File file) {
+        // Our own (hidden) catalog and frame store files live next to the data
+        return !knownFiles.contains(file) && !file.getName().startsWith(".")
+                && extensions.contains(getExtension(file)) && file.isFile();
+    }
+
+    private static String getExtension(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot < 0) {
+            return "";
+        }
+        return name.substring(dot);
+    }
+}
@@ -0,0 +1,241 @@
+package nl.esciencecenter.visualization.esalsa.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the work of the application in order of priority: the selected
+ * screen first, then the other screens, then the frames playback is about
+ * to show, and background jobs last. Work of the same priority runs in the
+ * order it was submitted.
+ *
+ * There is a pool for work that mostly waits on the disks (sized to what the
+ * disks can do in parallel) and one for work that mostly computes (sized to
+ * the number of cores). Work that does both is split into stages, each of
+ * which is queued on its own pool when the one before it is done. A stage is
+ * never interrupted, but more urgent work that comes in meanwhile goes ahead
+ * of the next stage.
+ */
+public class FetchScheduler {
+    private final static Logger logger = LoggerFactory.getLogger(FetchScheduler.class);
+
+    /**
+     * The kinds of work, most urgent first.
+     */
+    public enum Priority {
+        SELECTED_SCREEN, VISIBLE_SCREEN, PREFETCH, BACKGROUND
+    }
+
+    public enum Stage {
+        IO, CPU
+    }
+
+    private class PrioritizedTask<V> extends FutureTask<V> implements Comparable<PrioritizedTask<?>> {
+        private final Priority priority;
+        private final long sequenceNumber;
+        private final AtomicBoolean queued = new AtomicBoolean(true);
+
+        public PrioritizedTask(Priority priority, Callable<V> callable) {
+            super(callable);
+            this.priority = priority;
+            this.sequenceNumber = submitted.getAndIncrement();
+            queueDepths[priority.ordinal()].incrementAndGet();
+        }
+
+        private void leaveQueue() {
+            if (queued.compareAndSet(true, false)) {
+                queueDepths[priority.ordinal()].decrementAndGet();
+            }
+        }
+
+        @Override
+        public void run() {
+            leaveQueue();
+            super.run();
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled) {
+                leaveQueue();
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            if (!isCancelled()) {
+                completed[priority.ordinal()].incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask<?> other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+            return Long.compare(sequenceNumber, other.sequenceNumber);
+        }
+    }
+
+    private final ThreadPoolExecutor ioPool;
+    private final ThreadPoolExecutor cpuPool;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicInteger[] queueDepths;
+    private final AtomicLong[] completed;
+
+    /**
+     * @param ioThreads
+     *            the number of reads the disks can do in parallel.
+     * @param cpuThreads
+     *            the number of threads for computing, 0 for one per core.
+     */
+    public FetchScheduler(int ioThreads, int cpuThreads) {
+        if (cpuThreads <= 0) {
+            cpuThreads = Runtime.getRuntime().availableProcessors();
+        }
+        ioThreads = Math.max(1, ioThreads);
+
+        ioPool = new ThreadPoolExecutor(ioThreads, ioThreads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), Executors.defaultThreadFactory());
+        cpuPool = new ThreadPoolExecutor(cpuThreads, cpuThreads, 0L, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), Executors.defaultThreadFactory());
+
+        int numPriorities = Priority.values().length;
+        queueDepths = new AtomicInteger[numPriorities];
+        completed = new AtomicLong[numPriorities];
+        for (int i = 0; i < numPriorities; i++) {
+            queueDepths[i] = new AtomicInteger();
+            completed[i] = new AtomicLong();
+        }
+
+        logger.debug("Fetch scheduler with " + ioThreads + " I/O and " + cpuThreads + " compute threads");
+    }
+
+    public <V> Future<V> submit(Stage stage, Priority priority, Callable<V> task) {
+        PrioritizedTask<V> prioritizedTask = new PrioritizedTask<V>(priority, task);
+        try {
+            // Executed as is (not wrapped), so the queue can order it.
+            (stage == Stage.IO ? ioPool : cpuPool).execute(prioritizedTask);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, a later stage of earlier work is not needed.
+            prioritizedTask.cancel(false);
+        }
+        return prioritizedTask;
+    }
+
+    public Future<?> submit(Stage stage, Priority priority, Runnable task) {
+        return submit(stage, priority, Executors.callable(task));
+    }
+
+    /**
+     * Run the given tasks on the pool of the given stage and wait for all of
+     * them. A task that has not started by the time it is waited for is taken
+     * back and run on the calling thread, so this can be called from the
+     * pools themselves without running out of threads.
+     *
+     * @return the finished tasks, in the order given.
+     */
+    public <V> List<Future<V>> invokeAll(Stage stage, Priority priority, List<? extends Callable<V>> tasks)
+            throws InterruptedException {
+        List<Future<V>> submittedTasks = new ArrayList<Future<V>>(tasks.size());
+        for (Callable<V> task : tasks) {
+            submittedTasks.add(submit(stage, priority, task));
+        }
+
+        List<Future<V>> result = new ArrayList<Future<V>>(tasks.size());
+        try {
+            for (int i = 0; i < tasks.size(); i++) {
+                Future<V> task = submittedTasks.get(i);
+                if (task.cancel(false)) {
+                    FutureTask<V> inline = new FutureTask<V>(tasks.get(i));
+                    inline.run();
+                    task = inline;
+                } else {
+                    try {
+                        task.get();
+                    } catch (ExecutionException | CancellationException e) {
+                        // Left to the caller, through the future.
+                    }
+                }
+                result.add(task);
+            }
+        } catch (InterruptedException e) {
+            for (Future<V> task : submittedTasks) {
+                task.cancel(false);
+            }
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of tasks of the given priority waiting to run, on
+     *         both pools.
+     */
+    public int getQueueDepth(Priority priority) {
+        return queueDepths[priority.ordinal()].get();
+    }
+
+    /**
+     * @return the number of tasks of the given priority that have run.
+     */
+    public long getCompleted(Priority priority) {
+        return completed[priority.ordinal()].get();
+    }
+
+    public String getStatistics() {
+        String result = "";
+        for (Priority priority : Priority.values()) {
+            result += priority + " queued: " + getQueueDepth(priority) + " completed: " + getCompleted(priority)
+                    + " ";
+        }
+        return result.trim();
+    }
+
+    public boolean isTerminated() {
+        return ioPool.isTerminated() && cpuPool.isTerminated();
+    }
+
+    /**
+     * Wait (after {@link #shutdown()}) for the work on both pools to finish,
+     * for at most the given time in total.
+     *
+     * @return whether all work has finished.
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        // The I/O pool first, its work may still queue compute stages.
+        if (!ioPool.awaitTermination(timeout, unit)) {
+            return false;
+        }
+        return cpuPool.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Run the work that was already submitted, but accept no more.
+     */
+    public void shutdown() {
+        logger.debug("Fetch scheduler shut down, " + getStatistics());
+        ioPool.shutdown();
+        cpuPool.shutdown();
+    }
+}
@@ -0,0 +1,255 @@
+package nl.esciencecenter.visualization.esalsa.data;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the (lat, lon) data of frames, keyed by variable, data mode, time
+ * and depth, so playing back a stretch of frames again is served from memory.
+ * The least recently used frames are dropped when the cache grows beyond its
+ * byte budget.
+ *
+ * The cache is split into segments (by key), each with its own lock and its
+ * share of the budget, so the workers do not all wait on one lock.
+ *
+ * Frames dropped from the heap can be kept in an {@link OffHeapFrameCache}
+ * behind it, and are moved back to the heap when they are needed again. That
+ * lets the cache hold a whole run without the heap (and the garbage collector
+ * pauses) growing with it.
+ *
+ * Frames are keyed by their time rather than their frame number, since frame
+ * numbers shift when files with earlier times are added. The cached arrays
+ * are shared, and must not be modified.
+ */
+public class FrameCache {
+    private final static Logger logger = LoggerFactory.getLogger(FrameCache.class);
+
+    private static final int MAX_SEGMENTS = 16;
+    // Every segment must be able to hold a few of the largest frames.
+    private static final long MIN_SEGMENT_BYTES = 128L * 1024 * 1024;
+
+    static class Key {
+        private final String varName;
+        private final int dataMode;
+        private final double time;
+        private final int depth;
+
+        public Key(String varName, int dataMode, double time, int depth) {
+            this.varName = varName;
+            this.dataMode = dataMode;
+            this.time = time;
+            this.depth = depth;
+        }
+
+        @Override
+        public int hashCode() {
+            long timeBits = Double.doubleToLongBits(time);
+            int hashCode = varName.hashCode();
+            hashCode = hashCode * 31 + dataMode;
+            hashCode = hashCode * 31 + (int) (timeBits ^ (timeBits >>> 32));
+            hashCode = hashCode * 31 + depth;
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            if (this == thatObject)
+                return true;
+            if (!(thatObject instanceof Key))
+                return false;
+
+            Key that = (Key) thatObject;
+            return dataMode == that.dataMode && depth == that.depth
+                    && Double.doubleToLongBits(time) == Double.doubleToLongBits(that.time)
+                    && varName.compareTo(that.varName) == 0;
+        }
+    }
+
+    private class Segment {
+        private final long maxBytes;
+        // Access order, so iteration starts at the least recently used frame.
+        private final LinkedHashMap<Key, float[]> frames;
+        private long bytes = 0;
+
+        public Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            frames = new LinkedHashMap<Key, float[]>(16, 0.75f, true);
+        }
+
+        public synchronized float[] get(Key key) {
+            return frames.get(key);
+        }
+
+        /**
+         * @return the frames that were dropped to make room.
+         */
+        public synchronized List<Map.Entry<Key, float[]>> put(Key key, float[] data) {
+            List<Map.Entry<Key, float[]>> evicted = new ArrayList<Map.Entry<Key, float[]>>();
+            long frameBytes = data.length * 4L;
+            if (frameBytes > maxBytes) {
+                evicted.add(new AbstractMap.SimpleEntry<Key, float[]>(key, data));
+                return evicted;
+            }
+
+            float[] previous = frames.put(key, data);
+            if (previous != null) {
+                bytes -= previous.length * 4L;
+            }
+            bytes += frameBytes;
+
+            Iterator<Map.Entry<Key, float[]>> it = frames.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<Key, float[]> eldest = it.next();
+                it.remove();
+                bytes -= eldest.getValue().length * 4L;
+                evictions.incrementAndGet();
+                evicted.add(eldest);
+            }
+            return evicted;
+        }
+
+        public synchronized long getBytes() {
+            return bytes;
+        }
+
+        public synchronized void clear() {
+            frames.clear();
+            bytes = 0;
+        }
+    }
+
+    private final Segment[] segments;
+    // Null if frames are only kept on the heap.
+    private final OffHeapFrameCache<Key> offHeapCache;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public FrameCache(long maxBytes) {
+        this(maxBytes, 0);
+    }
+
+    /**
+     * @param offHeapBytes
+     *            the budget of the off-heap tier, or 0 for none.
+     */
+    public FrameCache(long maxBytes, long offHeapBytes) {
+        offHeapCache = offHeapBytes > 0 ? new OffHeapFrameCache<Key>(offHeapBytes) : null;
+        int numSegments = (int) Math.max(1, Math.min(MAX_SEGMENTS, maxBytes / MIN_SEGMENT_BYTES));
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment(maxBytes / numSegments);
+        }
+    }
+
+    private Segment getSegment(Key key) {
+        int hash = key.hashCode();
+        // Spread the bits, the low bits of the hash are mostly the depth.
+        hash ^= (hash >>> 16);
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * @return the cached frame, or null if it is not in the cache.
+     */
+    public float[] get(String varName, int dataMode, double time, int depth) {
+        Key key = new Key(varName, dataMode, time, depth);
+        float[] data = getSegment(key).get(key);
+        if (data != null) {
+            hits.incrementAndGet();
+            return data;
+        }
+
+        if (offHeapCache != null) {
+            data = offHeapCache.get(key);
+            if (data != null) {
+                // Each frame is in one of the tiers only.
+                offHeapCache.remove(key);
+                hits.incrementAndGet();
+                demote(getSegment(key).put(key, data));
+                return data;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String varName, int dataMode, double time, int depth, float[] data) {
+        Key key = new Key(varName, dataMode, time, depth);
+        demote(getSegment(key).put(key, data));
+    }
+
+    /**
+     * Move frames dropped from the heap to the off-heap tier, outside of the
+     * lock of their segment.
+     */
+    private void demote(List<Map.Entry<Key, float[]>> evicted) {
+        if (offHeapCache == null) {
+            return;
+        }
+        for (Map.Entry<Key, float[]> entry : evicted) {
+            offHeapCache.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void clear() {
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+        if (offHeapCache != null) {
+            offHeapCache.clear();
+        }
+
+        logger.debug("Frame cache cleared, " + getStatistics());
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the frames found in the off-heap tier (which are part of the
+     *         hits as well).
+     */
+    public long getOffHeapHits() {
+        return offHeapCache == null ? 0 : offHeapCache.getHits();
+    }
+
+    public long getOffHeapBytes() {
+        return offHeapCache == null ? 0 : offHeapCache.getBytes();
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.getBytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * @return the hits, misses, evictions and size of the cache, for logging.
+     */
+    public String getStatistics() {
+        return "hits: " + hits.get() + " misses: " + misses.get() + " evictions: " + evictions.get() + " size: "
+                + (getBytes() / (1024 * 1024)) + " MB" + " off-heap hits: " + getOffHeapHits() + " off-heap size: "
+                + (getOffHeapBytes() / (1024 * 1024)) + " MB";
+    }
+}
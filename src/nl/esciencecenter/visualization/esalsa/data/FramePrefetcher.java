@@ -0,0 +1,171 @@
+package nl.esciencecenter.visualization.esalsa.data;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import nl.esciencecenter.visualization.esalsa.ImauSettings;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Makes the images of the frames that playback is about to show, for every
+ * screen, so they are in the caches by the time they are needed. It follows
+ * the frames the {@link TimedPlayer} shows: the direction of playback tells
+ * which frames come next, and how many frames ahead it works depends on how
+ * long an image takes to make (from the moment it is scheduled until it is
+ * colormapped) compared to how long a frame is shown (up to
+ * PREFETCH_FRAMES). The work goes through the
+ * {@link FetchScheduler}, behind the images that are on screen.
+ *
+ * When playback changes direction or jumps to another frame, the frames that
+ * were going to be made are dropped.
+ */
+public class FramePrefetcher {
+    private final static Logger logger = LoggerFactory.getLogger(FramePrefetcher.class);
+    private final ImauSettings settings = ImauSettings.getInstance();
+
+    // Weight of the newest measurement in the running averages.
+    private static final double SMOOTHING = 0.25;
+
+    private final DatasetManager manager;
+    private final FetchScheduler scheduler;
+
+    private final Map<SurfaceTextureDescription, Future<?>> pending;
+    private int lastFrameNumber = -1;
+    private int direction = 1;
+    private long lastFrameTime = 0;
+
+    // Running averages, in milliseconds.
+    private double frameInterval;
+    private double imageTime = 0;
+
+    public FramePrefetcher(DatasetManager manager, FetchScheduler scheduler) {
+        this.manager = manager;
+        // Prefetches go after the images on screen, so those always get
+        // through first.
+        this.scheduler = scheduler;
+        pending = new LinkedHashMap<SurfaceTextureDescription, Future<?>>();
+        frameInterval = settings.getWaittimeMovie();
+    }
+
+    /**
+     * Called whenever a new frame is shown. Works out the direction and speed
+     * of playback, and schedules the frames that come next.
+     */
+    public synchronized void frameShown(int frameNumber, int numFrames) {
+        if (settings.getPrefetchFrames() <= 0 || frameNumber == lastFrameNumber) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int step = frameNumber - lastFrameNumber;
+        if (lastFrameNumber < 0 || Math.abs(step) != 1 || step != direction) {
+            // A jump, or a change of direction: what was scheduled is of no
+            // use anymore.
+            cancel();
+            if (lastFrameNumber >= 0 && Math.abs(step) == 1) {
+                direction = step;
+            }
+        } else {
+            frameInterval = (1 - SMOOTHING) * frameInterval + SMOOTHING * (now - lastFrameTime);
+        }
+        lastFrameNumber = frameNumber;
+        lastFrameTime = now;
+
+        int ahead = getFramesAhead();
+        List<SurfaceTextureDescription> wanted = new ArrayList<SurfaceTextureDescription>();
+        for (int i = 1; i <= ahead; i++) {
+            int target = frameNumber + i * direction;
+            if (target < 0 || target >= numFrames) {
+                break;
+            }
+            for (int screen = 0; screen < settings.getNumScreensRows() * settings.getNumScreensCols(); screen++) {
+                wanted.add(atFrame(settings.getSurfaceDescription(screen), target));
+            }
+        }
+
+        // Drop what is no longer wanted (playback moved past it), or was
+        // cancelled without being made. Frames that are done stay, so they
+        // are not made again while they are in the window.
+        Iterator<Map.Entry<SurfaceTextureDescription, Future<?>>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<SurfaceTextureDescription, Future<?>> entry = it.next();
+            if (entry.getValue().isCancelled() || !wanted.contains(entry.getKey())) {
+                entry.getValue().cancel(false);
+                it.remove();
+            }
+        }
+
+        // Nearest frames first, the scheduler runs prefetches in the order
+        // they come in.
+        for (final SurfaceTextureDescription desc : wanted) {
+            if (!pending.containsKey(desc)) {
+                final long submitted = System.currentTimeMillis();
+                final Runnable imageMade = new Runnable() {
+                    @Override
+                    public void run() {
+                        imageMade(System.currentTimeMillis() - submitted);
+                    }
+                };
+                pending.put(desc, scheduler.submit(FetchScheduler.Stage.IO, FetchScheduler.Priority.PREFETCH,
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                manager.prefetchImage(desc, imageMade);
+                            }
+                        }));
+            }
+        }
+    }
+
+    /**
+     * Called when an image that was scheduled the given number of
+     * milliseconds ago has been made: read (both runs, for a difference),
+     * colormapped, and the waiting for both stages in between.
+     */
+    private synchronized void imageMade(long millis) {
+        imageTime = (1 - SMOOTHING) * imageTime + SMOOTHING * millis;
+    }
+
+    /**
+     * @return how many frames to work ahead: enough to have the images of a
+     *         frame ready by the time it is shown, when they take longer to
+     *         make than a frame is shown.
+     */
+    private int getFramesAhead() {
+        // The time an image takes from being scheduled includes waiting for
+        // the images of the other screens and earlier frames, so it already
+        // covers how many can be made at once.
+        int ahead = 1 + (int) Math.ceil(imageTime / Math.max(1.0, frameInterval));
+        return Math.min(ahead, settings.getPrefetchFrames());
+    }
+
+    private static SurfaceTextureDescription atFrame(SurfaceTextureDescription desc, int frameNumber) {
+        return new SurfaceTextureDescription(frameNumber, desc.getDepth(), desc.getVarName(), desc.getColorMap(),
+                desc.isDynamicDimensions(), desc.isDiff(), desc.isSecondSet(), desc.getLowerBound(),
+                desc.getUpperBound(), desc.isLogScale());
+    }
+
+    /**
+     * Drop all frames that were scheduled but not started yet. Frames that
+     * are being made are left to finish.
+     */
+    public synchronized void cancel() {
+        if (!pending.isEmpty()) {
+            logger.debug("Cancelling " + pending.size() + " prefetches");
+        }
+        for (Future<?> future : pending.values()) {
+            future.cancel(false);
+        }
+        pending.clear();
+    }
+
+    public void shutdown() {
+        cancel();
+    }
+}
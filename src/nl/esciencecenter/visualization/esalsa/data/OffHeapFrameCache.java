@@ -0,0 +1,187 @@
+package nl.esciencecenter.visualization.esalsa.data;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Second tier of the {@link FrameCache}, which keeps frames outside of the
+ * Java heap, in direct buffers. The garbage collector never has to look at
+ * these, so the cache can hold many gigabytes without long pauses.
+ *
+ * The memory is allocated in slabs (as it is needed, up to the budget), which
+ * are divided into pages of a fixed size. A frame takes as many pages as it
+ * needs, wherever they are, so frames of different sizes never leave holes
+ * that are too small to use. The least recently used frames are dropped when
+ * no free pages are left.
+ *
+ * Direct memory is limited by -XX:MaxDirectMemorySize, which must be at least
+ * the budget of this cache.
+ */
+public class OffHeapFrameCache<K> {
+    private final static Logger logger = LoggerFactory.getLogger(OffHeapFrameCache.class);
+
+    private static final int PAGE_BYTES = 1024 * 1024;
+    private static final int PAGES_PER_SLAB = 256;
+    private static final int PAGE_FLOATS = PAGE_BYTES / 4;
+
+    private static class Entry {
+        private final int[] pages;
+        private final int length;
+
+        public Entry(int[] pages, int length) {
+            this.pages = pages;
+            this.length = length;
+        }
+    }
+
+    private final int maxPages;
+    private final List<ByteBuffer> slabs;
+    private int allocatedPages = 0;
+    private boolean outOfDirectMemory = false;
+    private final List<Integer> freePages;
+    // Access order, so iteration starts at the least recently used frame.
+    private final LinkedHashMap<K, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public OffHeapFrameCache(long maxBytes) {
+        maxPages = (int) Math.min(Integer.MAX_VALUE, maxBytes / PAGE_BYTES);
+        slabs = new ArrayList<ByteBuffer>();
+        freePages = new ArrayList<Integer>();
+        entries = new LinkedHashMap<K, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * @return a copy of the cached frame (on the heap), or null if it is not
+     *         in the cache.
+     */
+    public synchronized float[] get(K key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+
+        float[] result = new float[entry.length];
+        for (int i = 0; i < entry.pages.length; i++) {
+            int offset = i * PAGE_FLOATS;
+            getPage(entry.pages[i]).get(result, offset, Math.min(PAGE_FLOATS, entry.length - offset));
+        }
+        return result;
+    }
+
+    public synchronized boolean contains(K key) {
+        return entries.containsKey(key);
+    }
+
+    public synchronized void put(K key, float[] data) {
+        int neededPages = (data.length + PAGE_FLOATS - 1) / PAGE_FLOATS;
+        if (neededPages > maxPages) {
+            return;
+        }
+
+        remove(key);
+        while (freePages.size() < neededPages && !allocateSlab()) {
+            Iterator<Map.Entry<K, Entry>> it = entries.entrySet().iterator();
+            if (!it.hasNext()) {
+                return;
+            }
+            Entry eldest = it.next().getValue();
+            it.remove();
+            release(eldest);
+            evictions.incrementAndGet();
+        }
+
+        int[] pages = new int[neededPages];
+        for (int i = 0; i < neededPages; i++) {
+            pages[i] = freePages.remove(freePages.size() - 1);
+            int offset = i * PAGE_FLOATS;
+            getPage(pages[i]).put(data, offset, Math.min(PAGE_FLOATS, data.length - offset));
+        }
+        entries.put(key, new Entry(pages, data.length));
+    }
+
+    public synchronized void remove(K key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        for (int page : entry.pages) {
+            freePages.add(page);
+        }
+    }
+
+    /**
+     * @return whether there was room in the budget for another slab.
+     */
+    private boolean allocateSlab() {
+        int slabPages = Math.min(PAGES_PER_SLAB, maxPages - allocatedPages);
+        if (slabPages <= 0 || outOfDirectMemory) {
+            return false;
+        }
+
+        try {
+            slabs.add(ByteBuffer.allocateDirect(slabPages * PAGE_BYTES).order(ByteOrder.nativeOrder()));
+        } catch (OutOfMemoryError e) {
+            outOfDirectMemory = true;
+            logger.warn("Could not allocate more direct memory for the frame cache, raise -XX:MaxDirectMemorySize");
+            return false;
+        }
+        for (int i = slabPages - 1; i >= 0; i--) {
+            freePages.add(allocatedPages + i);
+        }
+        allocatedPages += slabPages;
+        return true;
+    }
+
+    private FloatBuffer getPage(int page) {
+        ByteBuffer slab = slabs.get(page / PAGES_PER_SLAB).duplicate();
+        int offset = (page % PAGES_PER_SLAB) * PAGE_BYTES;
+        slab.position(offset);
+        slab.limit(offset + PAGE_BYTES);
+        // Duplicates are big endian, whatever the original was.
+        return slab.slice().order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    /**
+     * Forget all frames. The memory is kept for the frames to come.
+     */
+    public synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            release(entry);
+        }
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getBytes() {
+        return (allocatedPages - freePages.size()) * (long) PAGE_BYTES;
+    }
+}
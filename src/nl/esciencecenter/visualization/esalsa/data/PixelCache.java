@@ -0,0 +1,134 @@
+package nl.esciencecenter.visualization.esalsa.data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.esciencecenter.neon.swing.ColormapInterpreter.Dimensions;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of finished images (colormapped pixels), keyed by the complete
+ * description of a screen. Going back to something that was shown recently
+ * skips reading, regridding and colormapping altogether. It sits in front of
+ * the {@link FrameCache}, which holds the data the images are made from, so a
+ * change of colormap or range only needs the colormapping again.
+ *
+ * The least recently used images are dropped when the cache grows beyond its
+ * byte budget.
+ */
+public class PixelCache {
+    private final static Logger logger = LoggerFactory.getLogger(PixelCache.class);
+
+    public static class Image {
+        private final int[] pixels;
+        private final float minimum;
+        private final float maximum;
+        private final float topTexCoord;
+        private final float bottomTexCoord;
+
+        public Image(int[] pixels, Dimensions colormapDims, float topTexCoord, float bottomTexCoord) {
+            this.pixels = pixels;
+            this.minimum = colormapDims.getMin();
+            this.maximum = colormapDims.getMax();
+            this.topTexCoord = topTexCoord;
+            this.bottomTexCoord = bottomTexCoord;
+        }
+
+        public int[] getPixels() {
+            return pixels;
+        }
+
+        public float getTopTexCoord() {
+            return topTexCoord;
+        }
+
+        public float getBottomTexCoord() {
+            return bottomTexCoord;
+        }
+
+        /**
+         * @return whether this image was made with the given colormap range.
+         */
+        public boolean isMadeWith(Dimensions colormapDims) {
+            return Float.compare(minimum, colormapDims.getMin()) == 0
+                    && Float.compare(maximum, colormapDims.getMax()) == 0;
+        }
+    }
+
+    private final long maxBytes;
+    // Access order, so iteration starts at the least recently used image.
+    private final LinkedHashMap<SurfaceTextureDescription, Image> images;
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public PixelCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        images = new LinkedHashMap<SurfaceTextureDescription, Image>(16, 0.75f, true);
+    }
+
+    /**
+     * @return the cached image of the description, made with the given
+     *         colormap range, or null if there is none.
+     */
+    public synchronized Image get(SurfaceTextureDescription desc, Dimensions colormapDims) {
+        Image image = images.get(desc);
+        if (image != null && image.isMadeWith(colormapDims)) {
+            hits.incrementAndGet();
+            return image;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public synchronized void put(SurfaceTextureDescription desc, Image image) {
+        long imageBytes = image.getPixels().length * 4L;
+        if (imageBytes > maxBytes) {
+            return;
+        }
+
+        Image previous = images.put(desc, image);
+        if (previous != null) {
+            bytes -= previous.getPixels().length * 4L;
+        }
+        bytes += imageBytes;
+
+        Iterator<Map.Entry<SurfaceTextureDescription, Image>> it = images.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<SurfaceTextureDescription, Image> eldest = it.next();
+            it.remove();
+            bytes -= eldest.getValue().getPixels().length * 4L;
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        bytes = 0;
+
+        logger.debug("Pixel cache cleared, hits: " + hits.get() + " misses: " + misses.get() + " evictions: "
+                + evictions.get());
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,56 @@
+package nl.esciencecenter.visualization.esalsa.data;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure that work with the same key is only done once at a time. The
+ * first thread to ask for a key does the work, threads that ask for the same
+ * key while it is busy wait for that result instead of doing the work again.
+ * Once it is done the key is forgotten, keeping results is up to the caches.
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, FutureTask<V>> inFlight;
+
+    private final AtomicLong shared = new AtomicLong();
+
+    public SingleFlight() {
+        inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+    }
+
+    /**
+     * @return the result of the given work, or of the work with the same key
+     *         that was already in progress.
+     * @throws ExecutionException
+     *             with the exception the work threw as its cause.
+     * @throws InterruptedException
+     *             if interrupted while waiting for another thread.
+     */
+    public V execute(K key, Callable<V> work) throws ExecutionException, InterruptedException {
+        FutureTask<V> task = new FutureTask<V>(work);
+        FutureTask<V> running = inFlight.putIfAbsent(key, task);
+        if (running != null) {
+            shared.incrementAndGet();
+            return running.get();
+        }
+
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        return task.get();
+    }
+
+    /**
+     * @return how many requests got the result of work that was already in
+     *         progress.
+     */
+    public long getShared() {
+        return shared.get();
+    }
+}
@@ -71,7 +71,7 @@ public class SurfaceTextureDescription {
     public int hashCode() {
         int dynamicPrime = ((dynamicDimensions ? 1 : 3) + 41) * 313;
         int diffPrime = ((diff ? 3 : 5) + 43) * 313;
-        int secondPrime = ((diff ? 5 : 7) + 53) * 313;
+        int secondPrime = ((secondSet ? 5 : 7) + 53) * 313;
         int variablePrime = (varName.hashCode() + 67) * 859;
         int frameNumberPrime = (int) ((frameNumber + 131) * 1543);
         int depthPrime = (depth + 251) * 2957;
@@ -99,7 +99,8 @@ public class SurfaceTextureDescription {
         // now a proper field-by-field evaluation can be made
         return (dynamicDimensions == that.dynamicDimensions && diff == that.diff && secondSet == that.secondSet
                 && varName.compareTo(that.varName) == 0 && frameNumber == that.frameNumber
-                && lowerBound == that.lowerBound && upperBound == that.upperBound && depth == that.depth
+                && Float.compare(lowerBound, that.lowerBound) == 0
+                && Float.compare(upperBound, that.upperBound) == 0 && depth == that.depth
                 && colorMap.compareTo(that.colorMap) == 0 && that.logScale == logScale);
     }
 
@@ -183,7 +183,9 @@ public class TextureStorage {
 
         if (!alreadyAvailable) {
             logger.debug("requesting: " + newDesc.getVarName());
-            manager.buildImages(newDesc);
+            manager.buildImages(screenNumber, newDesc);
+        } else {
+            manager.setRequestedImage(screenNumber, newDesc);
         }
 
         // stopTimeMillis = System.currentTimeMillis();
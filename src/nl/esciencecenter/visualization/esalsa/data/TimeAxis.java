@@ -0,0 +1,92 @@
+package nl.esciencecenter.visualization.esalsa.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted, duplicate free list of all the times (frames) in the open datasets.
+ * Immutable; merging in new times gives a new axis.
+ */
+public class TimeAxis {
+    private final double[] times;
+
+    private static class Cursor implements Comparable<Cursor> {
+        private final double[] times;
+        private int position = 0;
+
+        public Cursor(double[] times) {
+            this.times = times;
+        }
+
+        public double current() {
+            return times[position];
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            return Double.compare(current(), other.current());
+        }
+    }
+
+    private TimeAxis(double[] times) {
+        this.times = times;
+    }
+
+    public static TimeAxis empty() {
+        return new TimeAxis(new double[0]);
+    }
+
+    /**
+     * K-way merge of sorted time arrays into a new axis, dropping duplicate
+     * times.
+     */
+    public static TimeAxis merge(List<double[]> sortedTimes) {
+        int total = 0;
+        PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(Math.max(1, sortedTimes.size()));
+        for (double[] times : sortedTimes) {
+            if (times.length > 0) {
+                cursors.add(new Cursor(times));
+                total += times.length;
+            }
+        }
+
+        double[] merged = new double[total];
+        int size = 0;
+        while (!cursors.isEmpty()) {
+            Cursor cursor = cursors.poll();
+            double time = cursor.current();
+            if (size == 0 || merged[size - 1] != time) {
+                merged[size] = time;
+                size++;
+            }
+
+            cursor.position++;
+            if (cursor.position < cursor.times.length) {
+                cursors.add(cursor);
+            }
+        }
+
+        return new TimeAxis(Arrays.copyOf(merged, size));
+    }
+
+    /**
+     * @return a new axis with the times of this axis and the given sorted
+     *         time arrays.
+     */
+    public TimeAxis mergeWith(List<double[]> sortedTimes) {
+        List<double[]> all = new ArrayList<double[]>(sortedTimes.size() + 1);
+        all.add(times);
+        all.addAll(sortedTimes);
+        return merge(all);
+    }
+
+    public int size() {
+        return times.length;
+    }
+
+    public double getTime(int frameNumber) {
+        return times[frameNumber];
+    }
+}
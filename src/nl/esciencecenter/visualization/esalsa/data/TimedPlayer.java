@@ -9,6 +9,7 @@ import java.util.List;
 
 import javax.swing.JFormattedTextField;
 import javax.swing.JSlider;
+import javax.swing.SwingUtilities;
 
 import nl.esciencecenter.neon.exceptions.UninitializedException;
 import nl.esciencecenter.neon.math.Float2Vector;
@@ -117,7 +118,8 @@ public class TimedPlayer implements Runnable {
 
     private ImauInputHandler inputHandler;
 
-    private DatasetManager dsManager;
+    private volatile DatasetManager dsManager;
+    private DirectoryWatcher directoryWatcher;
 
     private boolean needsScreenshot = false;
     private String screenshotFilename = "";
@@ -137,6 +139,11 @@ public class TimedPlayer implements Runnable {
         frameCounter.setValue(0);
         timeBar.setMaximum(0);
 
+        if (directoryWatcher != null) {
+            directoryWatcher.close();
+            directoryWatcher = null;
+        }
+
         if (dsManager != null) {
             dsManager.shutdown();
         }
@@ -151,9 +158,41 @@ public class TimedPlayer implements Runnable {
         timeBar.setMaximum(initialMaxBar);
         timeBar.setMinimum(0);
 
+        if (settings.isWatchDirectories()) {
+            watchDirectories(files);
+        }
+
         initialized = true;
     }
 
+    /**
+     * Pick up the files a running simulation adds next to the opened files,
+     * and extend the time bar with the new frames without interrupting
+     * playback.
+     */
+    private void watchDirectories(File[] files) {
+        final DatasetManager manager = dsManager;
+        try {
+            directoryWatcher = new DirectoryWatcher(files, new DirectoryWatcher.Listener() {
+                @Override
+                public void filesCompleted(List<File> newFiles) {
+                    manager.addFiles(newFiles);
+
+                    final int newMaxBar = manager.getNumFrames() - 1;
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            timeBar.setMaximum(newMaxBar);
+                        }
+                    });
+                }
+            });
+            directoryWatcher.start();
+        } catch (IOException e) {
+            logger.warn("Could not watch the data directory for new files: " + e.getMessage());
+        }
+    }
+
     public synchronized boolean isInitialized() {
         return initialized;
     }
@@ -367,20 +406,31 @@ public class TimedPlayer implements Runnable {
                     this.frameCounter.setValue(newFrameNumber);
 
                     settings.setRequestedNewConfiguration(true);
+                    dsManager.frameShown(newFrameNumber);
                 }
             }
         }
     }
 
-    public synchronized TextureStorage getTextureStorage(String varName) throws DatasetNotFoundException {
+    public TextureStorage getTextureStorage(String varName) throws DatasetNotFoundException {
         return dsManager.getTextureStorage(varName);
     }
 
-    public synchronized List<String> getVariables() {
+    public synchronized void prefetchDepthColumns() {
+        if (dsManager != null) {
+            dsManager.prefetchDepthColumns();
+        }
+    }
+
+    public List<String> getVariables() {
         return dsManager.getVariables();
     }
 
-    public synchronized String getVariableUnits(String varName) throws DatasetNotFoundException {
+    public boolean isVariableActivated(String varName) throws DatasetNotFoundException {
+        return dsManager.isVariableActivated(varName);
+    }
+
+    public String getVariableUnits(String varName) throws DatasetNotFoundException {
         return dsManager.getVariableUnits(varName);
     }
 
@@ -396,15 +446,15 @@ public class TimedPlayer implements Runnable {
         return dsManager.getVariableLonTexMap(varName, frameNumber);
     }
 
-    public synchronized String getVariableDescription(String varName) throws DatasetNotFoundException {
+    public String getVariableDescription(String varName) throws DatasetNotFoundException {
         return dsManager.getVariableDescription(varName);
     }
 
-    public synchronized float getMinValueContainedInDataset(String varName) throws DatasetNotFoundException {
+    public float getMinValueContainedInDataset(String varName) throws DatasetNotFoundException {
         return dsManager.getMinValueContainedInDataset(varName);
     }
 
-    public synchronized float getMaxValueContainedInDataset(String varName) throws DatasetNotFoundException {
+    public float getMaxValueContainedInDataset(String varName) throws DatasetNotFoundException {
         return dsManager.getMaxValueContainedInDataset(varName);
     }
 
@@ -0,0 +1,118 @@
+package nl.esciencecenter.visualization.esalsa.data;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import nl.esciencecenter.visualization.esalsa.data.reworked.NCDFDataSet;
+import nl.esciencecenter.visualization.esalsa.data.reworked.NCDFVariable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Immutable index from variable name to the dataset and variable with that
+ * name. It is built once and replaced as a whole when the datasets change, so
+ * lookups need no locking and do not allocate.
+ *
+ * The first dataset that has a variable is its control run. If a later
+ * dataset has a variable with the same name and dimensions, that is the other
+ * run, used by the Other and Difference data modes.
+ */
+public class VariableIndex {
+    private final static Logger logger = LoggerFactory.getLogger(VariableIndex.class);
+
+    public static class Entry {
+        private final NCDFDataSet dataset;
+        private final NCDFVariable variable;
+
+        public Entry(NCDFDataSet dataset, NCDFVariable variable) {
+            this.dataset = dataset;
+            this.variable = variable;
+        }
+
+        public NCDFDataSet getDataset() {
+            return dataset;
+        }
+
+        public NCDFVariable getVariable() {
+            return variable;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+    private final Map<String, Entry> otherEntries;
+    private final List<String> names;
+
+    private VariableIndex(Map<String, Entry> entries, Map<String, Entry> otherEntries, List<String> names) {
+        this.entries = entries;
+        this.otherEntries = otherEntries;
+        this.names = names;
+    }
+
+    /**
+     * Index the variables of the given datasets, in order.
+     */
+    public static VariableIndex build(List<NCDFDataSet> datasets) {
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        Map<String, Entry> otherEntries = new HashMap<String, Entry>();
+        List<String> names = new ArrayList<String>();
+        for (NCDFDataSet dataset : datasets) {
+            for (String name : dataset.getVariableNames()) {
+                NCDFVariable variable = dataset.getVariable(name);
+                Entry control = entries.get(name);
+                if (control == null) {
+                    names.add(name);
+                    entries.put(name, new Entry(dataset, variable));
+                } else if (!otherEntries.containsKey(name)) {
+                    if (hasSameDimensions(control.getVariable(), variable)) {
+                        otherEntries.put(name, new Entry(dataset, variable));
+                    } else {
+                        logger.info("Not comparing " + name + " between runs, the dimensions do not match.");
+                    }
+                }
+            }
+        }
+        return new VariableIndex(entries, otherEntries, Collections.unmodifiableList(names));
+    }
+
+    private static boolean hasSameDimensions(NCDFVariable a, NCDFVariable b) {
+        return a.getLatDimensionSize() == b.getLatDimensionSize()
+                && a.getLonDimensionSize() == b.getLonDimensionSize()
+                && a.getHeightDimensionSize() == b.getHeightDimensionSize();
+    }
+
+    public Entry get(String varName) throws DatasetNotFoundException {
+        Entry entry = entries.get(varName);
+        if (entry == null) {
+            throw new DatasetNotFoundException("What did you do? " + varName
+                    + " doesn't exist? This should not have happened.");
+        }
+        return entry;
+    }
+
+    /**
+     * @return the variable of the other run with this name.
+     */
+    public Entry getOther(String varName) throws DatasetNotFoundException {
+        Entry entry = otherEntries.get(varName);
+        if (entry == null) {
+            throw new DatasetNotFoundException("There is no other run with " + varName + " to compare with.");
+        }
+        return entry;
+    }
+
+    public boolean hasOther(String varName) {
+        return otherEntries.containsKey(varName);
+    }
+
+    /**
+     * @return the names of the variables in all datasets, in the order of the
+     *         datasets, without duplicates (unmodifiable).
+     */
+    public List<String> getNames() {
+        return names;
+    }
+}
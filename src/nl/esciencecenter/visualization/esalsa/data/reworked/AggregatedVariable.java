@@ -0,0 +1,463 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.InvalidRangeException;
+
+/**
+ * A virtual variable holding the temporal means of another variable: annual
+ * means, a monthly climatology over the last years, or a running mean. Every
+ * frame is the mean over a group of frames of the source, computed by
+ * streaming over those frames with running sums (on a fork-join pool). It
+ * behaves like any other variable, with its own times and bounds, and is kept
+ * in a frame store once computed. When timesteps are added to the source, the
+ * frames are grouped again and the frame store is made anew.
+ */
+public class AggregatedVariable extends NCDFVariable {
+    private final static Logger logger = LoggerFactory.getLogger(AggregatedVariable.class);
+
+    private final static ForkJoinPool aggregationPool = new ForkJoinPool();
+    private static final int FRAMES_PER_TASK = 4;
+
+    public enum Kind {
+        ANNUAL_MEAN, CLIMATOLOGY, RUNNING_MEAN
+    }
+
+    private final NCDFVariable source;
+    private final Kind kind;
+    // Number of years of a climatology, or frames of a running mean.
+    private final int parameter;
+    // The source frames that make up each frame of this variable, replaced as
+    // a whole when the source changes.
+    private volatile int[][] sourceFrames;
+
+    // Running sums of the last computed running mean, so the next frame only
+    // needs to add one source frame and remove one.
+    private RunningState runningState;
+
+    private AggregatedVariable(String name, String description, NCDFVariable source, Kind kind, int parameter,
+            Map<Double, List<Integer>> groups) {
+        super(name, description, source.getUnits(), source, getTimes(groups));
+        this.source = source;
+        this.kind = kind;
+        this.parameter = parameter;
+        this.sourceFrames = getSourceFrames(groups);
+    }
+
+    /**
+     * Create the aggregated variable described by the given specification,
+     * &lt;variable&gt;:&lt;kind&gt;[:&lt;parameter&gt;], where the parameter
+     * is the number of years of a climatology (default 30) or the number of
+     * frames of a running mean (default 12).
+     *
+     * @return the new variable, or null if the specification does not apply
+     *         to the given source.
+     */
+    public static AggregatedVariable create(String specification, NCDFVariable source) {
+        String[] parts = specification.trim().split(":");
+        if (parts.length < 2 || parts[0].compareTo(source.getName()) != 0) {
+            return null;
+        }
+
+        Kind kind;
+        try {
+            kind = Kind.valueOf(parts[1].trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            logger.warn("Unknown aggregation " + parts[1] + " for " + source.getName());
+            return null;
+        }
+        int parameter = 0;
+        if (parts.length > 2) {
+            try {
+                parameter = Integer.parseInt(parts[2].trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid parameter " + parts[2] + " for " + specification);
+                return null;
+            }
+        }
+
+        String name, description;
+        switch (kind) {
+        case ANNUAL_MEAN:
+            name = source.getName() + "_annual_mean";
+            description = source.getDescription() + " (annual mean)";
+            break;
+        case CLIMATOLOGY:
+            parameter = parameter > 0 ? parameter : 30;
+            name = source.getName() + "_climatology_" + parameter + "y";
+            description = source.getDescription() + " (" + parameter + " year climatology)";
+            break;
+        default:
+            parameter = parameter > 0 ? parameter : 12;
+            name = source.getName() + "_running_mean_" + parameter;
+            description = source.getDescription() + " (running mean over " + parameter + ")";
+            break;
+        }
+
+        Map<Double, List<Integer>> groups = group(kind, parameter, source.getTimeArray());
+        if (groups.isEmpty()) {
+            logger.info("Not enough timesteps in " + source.getName() + " for " + specification);
+            return null;
+        }
+
+        return new AggregatedVariable(name, description, source, kind, parameter, groups);
+    }
+
+    /**
+     * @return the source frames of every frame of the aggregation, by the
+     *         time of that frame.
+     */
+    private static Map<Double, List<Integer>> group(Kind kind, int parameter, double[] sourceTimes) {
+        Map<Double, List<Integer>> groups = new LinkedHashMap<Double, List<Integer>>();
+        switch (kind) {
+        case ANNUAL_MEAN:
+            groupByYear(sourceTimes, groups);
+            break;
+        case CLIMATOLOGY:
+            groupByMonth(sourceTimes, parameter, groups);
+            break;
+        default:
+            for (int t = parameter - 1; t < sourceTimes.length; t++) {
+                List<Integer> group = new ArrayList<Integer>();
+                for (int s = t - parameter + 1; s <= t; s++) {
+                    group.add(s);
+                }
+                groups.put(sourceTimes[t], group);
+            }
+            break;
+        }
+        return groups;
+    }
+
+    private static double[] getTimes(Map<Double, List<Integer>> groups) {
+        double[] times = new double[groups.size()];
+        int i = 0;
+        for (Double time : groups.keySet()) {
+            times[i++] = time;
+        }
+        return times;
+    }
+
+    private static int[][] getSourceFrames(Map<Double, List<Integer>> groups) {
+        int[][] sourceFrames = new int[groups.size()][];
+        int i = 0;
+        for (List<Integer> group : groups.values()) {
+            sourceFrames[i] = new int[group.size()];
+            for (int j = 0; j < sourceFrames[i].length; j++) {
+                sourceFrames[i][j] = group.get(j);
+            }
+            i++;
+        }
+        return sourceFrames;
+    }
+
+    NCDFVariable getSource() {
+        return source;
+    }
+
+    /**
+     * Group the frames of the source again, after timesteps were added to it.
+     * Those may have shifted the frames that were there, and change the
+     * means of the groups they fall in.
+     */
+    void sourceChanged() {
+        Map<Double, List<Integer>> groups = group(kind, parameter, source.getTimeArray());
+        synchronized (this) {
+            sourceFrames = getSourceFrames(groups);
+            runningState = null;
+            replaceTimes(getTimes(groups));
+        }
+        logger.debug(getName() + " regrouped, now " + groups.size() + " frames.");
+    }
+
+    /**
+     * One group per year, at the time of the first timestep of that year.
+     */
+    private static void groupByYear(double[] sourceTimes, Map<Double, List<Integer>> groups) {
+        int currentYear = Integer.MIN_VALUE;
+        List<Integer> group = null;
+        for (int t = 0; t < sourceTimes.length; t++) {
+            int year = getCalendar(sourceTimes[t]).get(Calendar.YEAR);
+            if (group == null || year != currentYear) {
+                currentYear = year;
+                group = new ArrayList<Integer>();
+                groups.put(sourceTimes[t], group);
+            }
+            group.add(t);
+        }
+    }
+
+    /**
+     * One group per month of the year, over the last years of the source, at
+     * the times of the months of the last year.
+     */
+    private static void groupByMonth(double[] sourceTimes, int years, Map<Double, List<Integer>> groups) {
+        if (sourceTimes.length == 0) {
+            return;
+        }
+        int lastYear = getCalendar(sourceTimes[sourceTimes.length - 1]).get(Calendar.YEAR);
+
+        List<List<Integer>> months = new ArrayList<List<Integer>>();
+        double[] monthTimes = new double[12];
+        for (int m = 0; m < 12; m++) {
+            months.add(new ArrayList<Integer>());
+            monthTimes[m] = Double.NaN;
+        }
+        for (int t = 0; t < sourceTimes.length; t++) {
+            Calendar date = getCalendar(sourceTimes[t]);
+            if (date.get(Calendar.YEAR) > lastYear - years) {
+                int month = date.get(Calendar.MONTH);
+                months.get(month).add(t);
+                monthTimes[month] = sourceTimes[t];
+            }
+        }
+
+        // Keep the months in the order of the times they are shown at.
+        List<Integer> order = new ArrayList<Integer>();
+        for (int m = 0; m < 12; m++) {
+            if (!months.get(m).isEmpty()) {
+                int position = 0;
+                while (position < order.size() && monthTimes[order.get(position)] < monthTimes[m]) {
+                    position++;
+                }
+                order.add(position, m);
+            }
+        }
+        for (int m : order) {
+            groups.put(monthTimes[m], months.get(m));
+        }
+    }
+
+    @Override
+    public boolean isVirtual() {
+        return true;
+    }
+
+    @Override
+    public void activate() throws IOException {
+        source.activate();
+        super.activate();
+    }
+
+    @Override
+    Grid findGrid() {
+        return source.getGrid();
+    }
+
+    @Override
+    long getNewestDataFileTime() {
+        return source.getNewestDataFileTime();
+    }
+
+    @Override
+    void readData(int frameIndex, int requestedDepth, float[] dst) throws NoSuchSequenceNumberException,
+            InvalidRangeException, IOException {
+        float[] mean = aggregate(frameIndex, requestedDepth, false);
+        System.arraycopy(mean, 0, dst, 0, Math.min(mean.length, dst.length));
+    }
+
+    @Override
+    float[] readColumn(int frameIndex) throws NoSuchSequenceNumberException, InvalidRangeException, IOException {
+        return aggregate(frameIndex, 0, true);
+    }
+
+    @Override
+    public float[] getSampledData(int frameIndex, int requestedDepth, int stride, int offset)
+            throws NoSuchSequenceNumberException, InvalidRangeException, IOException {
+        int latSize = getLatDimensionSize();
+        int lonSize = getLonDimensionSize();
+        float[] slab = new float[latSize * lonSize];
+        getData(frameIndex, requestedDepth, slab);
+
+        int latOffset = Math.min(offset, latSize - 1);
+        int lonOffset = Math.min(offset, lonSize - 1);
+        int sampledLats = (latSize - 1 - latOffset) / stride + 1;
+        int sampledLons = (lonSize - 1 - lonOffset) / stride + 1;
+        float[] result = new float[sampledLats * sampledLons];
+        for (int j = 0; j < sampledLats; j++) {
+            for (int i = 0; i < sampledLons; i++) {
+                result[j * sampledLons + i] = slab[(latOffset + j * stride) * lonSize + lonOffset + i * stride];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Sums and counts (of the values that are not the fill value) per cell.
+     */
+    private static class Accumulator {
+        private final double[] sums;
+        private final int[] counts;
+
+        public Accumulator(int size) {
+            sums = new double[size];
+            counts = new int[size];
+        }
+
+        public void add(float[] values, float fillValue, int sign) {
+            for (int i = 0; i < sums.length; i++) {
+                float value = values[i];
+                if (value != fillValue && !Float.isNaN(value)) {
+                    sums[i] += sign * value;
+                    counts[i] += sign;
+                }
+            }
+        }
+
+        public void add(Accumulator other) {
+            for (int i = 0; i < sums.length; i++) {
+                sums[i] += other.sums[i];
+                counts[i] += other.counts[i];
+            }
+        }
+
+        public float[] getMeans(float fillValue) {
+            float[] result = new float[sums.length];
+            for (int i = 0; i < sums.length; i++) {
+                result[i] = counts[i] > 0 ? (float) (sums[i] / counts[i]) : fillValue;
+            }
+            return result;
+        }
+    }
+
+    private static class RunningState {
+        private final int[][] sourceFrames;
+        private final int frameIndex;
+        private final int depth;
+        private final boolean column;
+        private final Accumulator accumulator;
+
+        public RunningState(int[][] sourceFrames, int frameIndex, int depth, boolean column,
+                Accumulator accumulator) {
+            this.sourceFrames = sourceFrames;
+            this.frameIndex = frameIndex;
+            this.depth = depth;
+            this.column = column;
+            this.accumulator = accumulator;
+        }
+    }
+
+    private float[] aggregate(int frameIndex, int depth, boolean column) throws NoSuchSequenceNumberException,
+            InvalidRangeException, IOException {
+        int[][] sourceFrames = this.sourceFrames;
+        if (frameIndex < 0 || frameIndex >= sourceFrames.length) {
+            throw new NoSuchSequenceNumberException("Frame " + frameIndex + " requested but not available.");
+        }
+        float fillValue = getFillValue();
+
+        // Going through a running mean frame by frame (as an export does)
+        // only takes one read per frame.
+        if (kind == Kind.RUNNING_MEAN) {
+            synchronized (this) {
+                RunningState state = runningState;
+                if (state != null && state.sourceFrames == sourceFrames && state.frameIndex == frameIndex - 1
+                        && state.depth == depth && state.column == column) {
+                    int[] frames = sourceFrames[frameIndex];
+                    state.accumulator.add(readSource(frames[frames.length - 1], depth, column), fillValue, 1);
+                    state.accumulator.add(readSource(frames[0] - 1, depth, column), fillValue, -1);
+                    runningState = new RunningState(sourceFrames, frameIndex, depth, column, state.accumulator);
+                    return state.accumulator.getMeans(fillValue);
+                }
+            }
+        }
+
+        Accumulator accumulator;
+        try {
+            accumulator = aggregationPool.invoke(new AccumulateTask(sourceFrames[frameIndex], 0,
+                    sourceFrames[frameIndex].length, depth, column));
+        } catch (SourceReadException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NoSuchSequenceNumberException) {
+                throw (NoSuchSequenceNumberException) cause;
+            } else if (cause instanceof InvalidRangeException) {
+                throw (InvalidRangeException) cause;
+            }
+            throw (IOException) cause;
+        }
+
+        if (kind == Kind.RUNNING_MEAN) {
+            synchronized (this) {
+                runningState = new RunningState(sourceFrames, frameIndex, depth, column, accumulator);
+            }
+            return accumulator.getMeans(fillValue);
+        }
+        return accumulator.getMeans(fillValue);
+    }
+
+    private float[] readSource(int sourceFrame, int depth, boolean column) throws NoSuchSequenceNumberException,
+            InvalidRangeException, IOException {
+        if (column) {
+            return source.getColumn(sourceFrame);
+        }
+        float[] slab = new float[getLatDimensionSize() * getLonDimensionSize()];
+        source.getData(sourceFrame, depth, slab);
+        return slab;
+    }
+
+    /**
+     * Carries the checked exceptions of reading the source out of the
+     * fork-join pool.
+     */
+    private static class SourceReadException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public SourceReadException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    private class AccumulateTask extends RecursiveTask<Accumulator> {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] frames;
+        private final int start;
+        private final int end;
+        private final int depth;
+        private final boolean column;
+
+        public AccumulateTask(int[] frames, int start, int end, int depth, boolean column) {
+            this.frames = frames;
+            this.start = start;
+            this.end = end;
+            this.depth = depth;
+            this.column = column;
+        }
+
+        @Override
+        protected Accumulator compute() {
+            if (end - start <= FRAMES_PER_TASK) {
+                Accumulator result = null;
+                for (int i = start; i < end; i++) {
+                    try {
+                        float[] values = readSource(frames[i], depth, column);
+                        if (result == null) {
+                            result = new Accumulator(values.length);
+                        }
+                        result.add(values, getFillValue(), 1);
+                    } catch (NoSuchSequenceNumberException | InvalidRangeException | IOException e) {
+                        throw new SourceReadException(e);
+                    }
+                }
+                return result;
+            }
+
+            int middle = (start + end) >>> 1;
+            AccumulateTask left = new AccumulateTask(frames, start, middle, depth, column);
+            AccumulateTask right = new AccumulateTask(frames, middle, end, depth, column);
+            left.fork();
+            Accumulator result = right.compute();
+            result.add(left.join());
+            return result;
+        }
+    }
+}
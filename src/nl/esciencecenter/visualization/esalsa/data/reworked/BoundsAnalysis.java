@@ -0,0 +1,193 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import nl.esciencecenter.visualization.esalsa.data.FetchScheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.InvalidRangeException;
+
+/**
+ * Background analysis of the minimum and maximum value of a variable. Every
+ * timestep is read and analysed (one depth slab at a time) as background work
+ * of the fetch scheduler, so the screens always go first. The running bounds
+ * are handed to the listener while the analysis progresses, and once more
+ * when it is done.
+ */
+public class BoundsAnalysis {
+    private final static Logger logger = LoggerFactory.getLogger(BoundsAnalysis.class);
+
+    private static final long PUBLISH_INTERVAL_MILLIS = 1000;
+
+    public interface Listener {
+        /**
+         * Called with the bounds found so far. The bounds are only valid if
+         * min <= max, a variable that contains nothing but fill values has no
+         * bounds.
+         */
+        void boundsAnalysed(float min, float max, boolean finished);
+    }
+
+    private final NCDFVariable variable;
+    private final FetchScheduler scheduler;
+    private final Listener listener;
+    private final float fillValue;
+    private final int numFrames;
+    private final int numDepths;
+    private final int totalSlabs;
+
+    private final AtomicInteger completedSlabs = new AtomicInteger();
+    private final AtomicInteger remainingFrames;
+    private volatile boolean cancelled = false;
+
+    private float min = Float.POSITIVE_INFINITY;
+    private float max = Float.NEGATIVE_INFINITY;
+    private long lastPublished = 0;
+
+    private long startTime;
+    private List<Future<?>> tasks;
+
+    private class FrameTask implements Runnable {
+        private final int frameIndex;
+
+        public FrameTask(int frameIndex) {
+            this.frameIndex = frameIndex;
+        }
+
+        @Override
+        public void run() {
+            float[] dataSlice = new float[variable.getLatDimensionSize() * variable.getLonDimensionSize()];
+            for (int depth = 0; depth < numDepths && !cancelled; depth++) {
+                try {
+                    variable.getData(frameIndex, depth, dataSlice);
+                    analyseSlab(dataSlice);
+                } catch (NoSuchSequenceNumberException | InvalidRangeException | IOException e) {
+                    logger.debug("Skipping slab " + frameIndex + "/" + depth + " of " + variable.getName() + ": "
+                            + e.getMessage());
+                }
+                completedSlabs.incrementAndGet();
+            }
+
+            if (remainingFrames.decrementAndGet() == 0) {
+                finish();
+            }
+        }
+    }
+
+    public BoundsAnalysis(NCDFVariable variable, FetchScheduler scheduler, Listener listener) {
+        this.variable = variable;
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.fillValue = variable.getFillValue();
+        this.numFrames = variable.getNumberOfTimeSteps();
+        this.numDepths = Math.max(1, variable.getHeightDimensionSize());
+        this.totalSlabs = numFrames * numDepths;
+        this.remainingFrames = new AtomicInteger(numFrames);
+    }
+
+    public synchronized void start() {
+        if (tasks != null) {
+            return;
+        }
+
+        startTime = System.currentTimeMillis();
+        tasks = new ArrayList<Future<?>>(numFrames);
+        for (int frameIndex = 0; frameIndex < numFrames; frameIndex++) {
+            tasks.add(scheduler.submit(FetchScheduler.Stage.IO, FetchScheduler.Priority.BACKGROUND,
+                    new FrameTask(frameIndex)));
+        }
+        if (numFrames == 0) {
+            finish();
+        }
+    }
+
+    private void finish() {
+        if (cancelled) {
+            return;
+        }
+
+        float resultMin, resultMax;
+        synchronized (this) {
+            resultMin = min;
+            resultMax = max;
+        }
+        logger.debug("Bounds of " + variable.getName() + " analysed in " + (System.currentTimeMillis() - startTime)
+                + " ms: " + resultMin + " to " + resultMax);
+        listener.boundsAnalysed(resultMin, resultMax, true);
+    }
+
+    /**
+     * Stop the analysis. Slabs that are being read are finished, but their
+     * results are no longer published.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if (tasks != null) {
+            for (Future<?> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return remainingFrames.get() == 0;
+    }
+
+    /**
+     * @return the fraction of the slabs that has been analysed.
+     */
+    public float getProgress() {
+        if (totalSlabs == 0) {
+            return 1f;
+        }
+        return completedSlabs.get() / (float) totalSlabs;
+    }
+
+    private void analyseSlab(float[] dataSlice) {
+        float slabMin = Float.POSITIVE_INFINITY;
+        float slabMax = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < dataSlice.length; i++) {
+            float value = dataSlice[i];
+            if (value != fillValue && value < slabMin) {
+                slabMin = value;
+            }
+            if (value != fillValue && value > slabMax) {
+                slabMax = value;
+            }
+        }
+
+        float resultMin, resultMax;
+        boolean publish = false;
+        synchronized (this) {
+            if (slabMin < min) {
+                min = slabMin;
+            }
+            if (slabMax > max) {
+                max = slabMax;
+            }
+            resultMin = min;
+            resultMax = max;
+
+            long now = System.currentTimeMillis();
+            if (now - lastPublished > PUBLISH_INTERVAL_MILLIS) {
+                lastPublished = now;
+                publish = true;
+            }
+        }
+
+        if (publish && !cancelled) {
+            logger.debug("Bounds analysis of " + variable.getName() + " at " + (int) (getProgress() * 100f) + "%");
+            listener.boundsAnalysed(resultMin, resultMax, false);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.InvalidRangeException;
+
+/**
+ * Quick estimate of the value range of a variable, based on a stratified
+ * sample: a few timesteps and depths spread evenly over the variable, and a
+ * strided subset of the grid cells of each of those slabs.
+ */
+public class BoundsEstimator {
+    private final static Logger logger = LoggerFactory.getLogger(BoundsEstimator.class);
+
+    private static final int SAMPLED_TIMESTEPS = 8;
+    private static final int SAMPLED_DEPTHS = 4;
+    private static final int SAMPLED_CELLS_PER_SLAB = 16384;
+
+    private static final float LOW_PERCENTILE = 0.01f;
+    private static final float HIGH_PERCENTILE = 0.99f;
+
+    public static class Estimate {
+        private final float min;
+        private final float max;
+        private final float lowPercentile;
+        private final float highPercentile;
+        private final int samples;
+
+        public Estimate(float min, float max, float lowPercentile, float highPercentile, int samples) {
+            this.min = min;
+            this.max = max;
+            this.lowPercentile = lowPercentile;
+            this.highPercentile = highPercentile;
+            this.samples = samples;
+        }
+
+        public float getMin() {
+            return min;
+        }
+
+        public float getMax() {
+            return max;
+        }
+
+        /**
+         * @return the 1st percentile of the sampled values.
+         */
+        public float getLowPercentile() {
+            return lowPercentile;
+        }
+
+        /**
+         * @return the 99th percentile of the sampled values.
+         */
+        public float getHighPercentile() {
+            return highPercentile;
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        public boolean isValid() {
+            return samples > 0;
+        }
+    }
+
+    public static Estimate estimate(NCDFVariable variable) throws NoSuchSequenceNumberException,
+            InvalidRangeException, IOException {
+        long startTime = System.currentTimeMillis();
+
+        int numTimeSteps = variable.getNumberOfTimeSteps();
+        int numDepths = Math.max(1, variable.getHeightDimensionSize());
+        int cells = variable.getLatDimensionSize() * variable.getLonDimensionSize();
+        int stride = Math.max(1, (int) Math.sqrt(cells / (double) SAMPLED_CELLS_PER_SLAB));
+        float fillValue = variable.getFillValue();
+
+        int timeSamples = Math.min(SAMPLED_TIMESTEPS, numTimeSteps);
+        int depthSamples = Math.min(SAMPLED_DEPTHS, numDepths);
+
+        float[] samples = new float[timeSamples * depthSamples * SAMPLED_CELLS_PER_SLAB];
+        int numSamples = 0;
+
+        for (int ts = 0; ts < timeSamples; ts++) {
+            // Take the middle of each stratum of timesteps and depths
+            int frameIndex = (int) ((ts + 0.5) * numTimeSteps / timeSamples);
+            for (int ds = 0; ds < depthSamples; ds++) {
+                int depth = (int) ((ds + 0.5) * numDepths / depthSamples);
+
+                // Shift the grid of sampled cells for every slab, so we do
+                // not keep looking at the same cells.
+                int offset = (ts * depthSamples + ds) % stride;
+                float[] slab = variable.getSampledData(frameIndex, depth, stride, offset);
+
+                if (numSamples + slab.length > samples.length) {
+                    samples = Arrays.copyOf(samples, Math.max(samples.length * 2, numSamples + slab.length));
+                }
+                for (float value : slab) {
+                    if (value != fillValue && !Float.isNaN(value)) {
+                        samples[numSamples] = value;
+                        numSamples++;
+                    }
+                }
+            }
+        }
+
+        if (numSamples == 0) {
+            return new Estimate(Float.NaN, Float.NaN, Float.NaN, Float.NaN, 0);
+        }
+
+        Arrays.sort(samples, 0, numSamples);
+        Estimate result = new Estimate(samples[0], samples[numSamples - 1],
+                samples[(int) (LOW_PERCENTILE * (numSamples - 1))], samples[(int) (HIGH_PERCENTILE * (numSamples - 1))],
+                numSamples);
+
+        logger.debug("Estimated bounds of " + variable.getName() + " from " + numSamples + " samples in "
+                + (System.currentTimeMillis() - startTime) + " ms: " + result.getMin() + " to " + result.getMax()
+                + ", 1-99% range " + result.getLowPercentile() + " to " + result.getHighPercentile());
+
+        return result;
+    }
+}
@@ -0,0 +1,122 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.io.File;
+import java.io.IOException;
+
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+/**
+ * Compares reading every (lat, lon) slice of a variable one slice at a time
+ * (the plain path of {@link NCDFVariable#getData(int, int, float[])}) against
+ * reading it through the {@link ChunkReadPlanner}. The order of the two
+ * alternates between rounds, so neither always gets the page cache the other
+ * one warmed up. Drop the page cache before starting for cold numbers.
+ *
+ * Usage: ChunkReadBenchmark &lt;file&gt; &lt;variable&gt; [cache size in MB]
+ */
+public class ChunkReadBenchmark {
+    private static final int ROUNDS = 3;
+
+    public static void main(String[] args) throws IOException, InvalidRangeException {
+        if (args.length < 2) {
+            System.err.println("Usage: ChunkReadBenchmark <file> <variable> [cache size in MB]");
+            System.exit(1);
+        }
+
+        File file = new File(args[0]);
+        String varName = args[1];
+        long cacheBytes = (args.length > 2 ? Long.parseLong(args[2]) : 64L) * 1024L * 1024L;
+
+        NetcdfFile ncfile = NetcdfFile.open(file.getAbsolutePath());
+        try {
+            Variable variable = ncfile.findVariable(varName);
+            if (variable == null) {
+                System.err.println("Variable " + varName + " not found in " + file.getName());
+                System.exit(1);
+            }
+
+            int[] shape = variable.getShape();
+            boolean hasDepth = shape.length > 3;
+            int timeSteps = shape[0];
+            int depths = hasDepth ? shape[1] : 1;
+            float[] dst = new float[shape[shape.length - 2] * shape[shape.length - 1]];
+
+            ChunkReadPlanner planner = new ChunkReadPlanner(cacheBytes);
+            System.out.println(varName + ": " + timeSteps + " timesteps, " + depths + " depths, chunked reads "
+                    + (planner.isWorthwhile(file, variable, hasDepth) ? "enabled" : "not worthwhile"));
+
+            for (int round = 0; round < ROUNDS; round++) {
+                planner.clear();
+                long hits = planner.getHits();
+                long misses = planner.getMisses();
+
+                long sliceTime, plannedTime;
+                if (round % 2 == 0) {
+                    sliceTime = timeSliceReads(variable, hasDepth, timeSteps, depths, dst);
+                    plannedTime = timePlannedReads(planner, file, variable, hasDepth, timeSteps, depths, dst);
+                } else {
+                    plannedTime = timePlannedReads(planner, file, variable, hasDepth, timeSteps, depths, dst);
+                    sliceTime = timeSliceReads(variable, hasDepth, timeSteps, depths, dst);
+                }
+
+                System.out.println("Round " + round + " (" + (round % 2 == 0 ? "slices first" : "planned first")
+                        + "): slice reads " + (sliceTime / 1000000L) + " ms, planned reads "
+                        + (plannedTime / 1000000L) + " ms (" + (planner.getHits() - hits) + " chunk cache hits, "
+                        + (planner.getMisses() - misses) + " misses)");
+            }
+        } finally {
+            ncfile.close();
+        }
+    }
+
+    /**
+     * @return the time (in nanoseconds) to read all slices one at a time.
+     */
+    private static long timeSliceReads(Variable variable, boolean hasDepth, int timeSteps, int depths, float[] dst)
+            throws IOException, InvalidRangeException {
+        long startTime = System.nanoTime();
+        for (int t = 0; t < timeSteps; t++) {
+            for (int d = 0; d < depths; d++) {
+                readSlice(variable, hasDepth, t, d, dst);
+            }
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    /**
+     * @return the time (in nanoseconds) to read all slices through the
+     *         planner.
+     */
+    private static long timePlannedReads(ChunkReadPlanner planner, File file, Variable variable, boolean hasDepth,
+            int timeSteps, int depths, float[] dst) throws IOException, InvalidRangeException {
+        long startTime = System.nanoTime();
+        for (int t = 0; t < timeSteps; t++) {
+            for (int d = 0; d < depths; d++) {
+                planner.read(file, variable, hasDepth, t, d, dst);
+            }
+        }
+        return System.nanoTime() - startTime;
+    }
+
+    private static void readSlice(Variable variable, boolean hasDepth, int t, int d, float[] dst)
+            throws IOException, InvalidRangeException {
+        Variable slice = variable.slice(0, t);
+        if (hasDepth) {
+            slice = slice.slice(0, d);
+        }
+
+        if (variable.getDataType() == DataType.FLOAT) {
+            float[] data = (float[]) slice.read().get1DJavaArray(float.class);
+            System.arraycopy(data, 0, dst, 0, Math.min(data.length, dst.length));
+        } else {
+            double[] dData = (double[]) slice.read().get1DJavaArray(double.class);
+            int length = Math.min(dData.length, dst.length);
+            for (int i = 0; i < length; i++) {
+                dst[i] = (float) dData[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.esciencecenter.visualization.esalsa.data.SingleFlight;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.Array;
+import ucar.ma2.DataType;
+import ucar.ma2.InvalidRangeException;
+import ucar.nc2.Attribute;
+import ucar.nc2.Variable;
+
+/**
+ * Plans reads of (lat, lon) slices from chunked (NetCDF-4/HDF5) variables.
+ * Reading a single slice from a variable that is chunked along time or depth
+ * decompresses whole chunks, of which most is thrown away. Instead, the
+ * planner reads the block of timesteps and depths covered by the chunk that
+ * holds the requested slice, and keeps that decompressed block in a small
+ * cache, so the neighbouring slices that share the chunk come from memory.
+ * Requests for a block that is being read wait for that read.
+ */
+public class ChunkReadPlanner {
+    private final static Logger logger = LoggerFactory.getLogger(ChunkReadPlanner.class);
+
+    private static final String CHUNK_SIZES_ATTRIBUTE = "_ChunkSizes";
+
+    private static class BlockKey {
+        private final File file;
+        private final String varName;
+        private final int firstTimeStep;
+        private final int firstDepth;
+
+        public BlockKey(File file, String varName, int firstTimeStep, int firstDepth) {
+            this.file = file;
+            this.varName = varName;
+            this.firstTimeStep = firstTimeStep;
+            this.firstDepth = firstDepth;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((file.hashCode() * 31 + varName.hashCode()) * 31 + firstTimeStep) * 31 + firstDepth;
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            if (this == thatObject)
+                return true;
+            if (!(thatObject instanceof BlockKey))
+                return false;
+
+            BlockKey that = (BlockKey) thatObject;
+            return firstTimeStep == that.firstTimeStep && firstDepth == that.firstDepth && file.equals(that.file)
+                    && varName.compareTo(that.varName) == 0;
+        }
+    }
+
+    /**
+     * A decompressed block of [timeSteps][depths][lat][lon] values.
+     */
+    private static class Block {
+        private final int depths;
+        private final float[] data;
+
+        public Block(int depths, float[] data) {
+            this.depths = depths;
+            this.data = data;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<BlockKey, Block> blocks;
+    private final Map<String, int[]> chunkShapes;
+    private final SingleFlight<BlockKey, Block> blockFlights;
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ChunkReadPlanner(long maxBytes) {
+        this.maxBytes = maxBytes;
+
+        blocks = new LinkedHashMap<BlockKey, Block>(16, 0.75f, true);
+        chunkShapes = new HashMap<String, int[]>();
+        blockFlights = new SingleFlight<BlockKey, Block>();
+    }
+
+    /**
+     * @return whether reads of single slices of this variable should go
+     *         through the planner: it is chunked along time or depth, and a
+     *         block of chunks fits in the cache.
+     */
+    public boolean isWorthwhile(File file, Variable fileVariable, boolean hasDepth) {
+        int[] chunkShape = getChunkShape(file, fileVariable);
+        if (chunkShape == null || chunkShape.length < (hasDepth ? 4 : 3)) {
+            return false;
+        }
+
+        int timeChunk = chunkShape[0];
+        int depthChunk = hasDepth ? chunkShape[1] : 1;
+        if (timeChunk <= 1 && depthChunk <= 1) {
+            return false;
+        }
+
+        int[] shape = fileVariable.getShape();
+        long blockBytes = 4L * timeChunk * depthChunk * shape[shape.length - 2] * shape[shape.length - 1];
+        return blockBytes <= maxBytes / 4;
+    }
+
+    /**
+     * Read the (lat, lon) slice at the given timestep (within the file) and
+     * depth into dst, reading and caching the chunk-aligned block around it if
+     * it is not cached yet.
+     */
+    public void read(File file, final Variable fileVariable, final boolean hasDepth, int timeStepWithinFile,
+            int depth, float[] dst) throws IOException, InvalidRangeException {
+        int[] chunkShape = getChunkShape(file, fileVariable);
+        final int[] shape = fileVariable.getShape();
+        int timeChunk = Math.max(1, chunkShape[0]);
+        int depthChunk = hasDepth ? Math.max(1, chunkShape[1]) : 1;
+
+        // Align the request to the chunk boundaries.
+        final int firstTimeStep = (timeStepWithinFile / timeChunk) * timeChunk;
+        final int firstDepth = hasDepth ? (depth / depthChunk) * depthChunk : 0;
+        final BlockKey key = new BlockKey(file, fileVariable.getFullName(), firstTimeStep, firstDepth);
+
+        Block block;
+        synchronized (this) {
+            block = blocks.get(key);
+        }
+        if (block != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+
+            final int timeSteps = Math.min(timeChunk, shape[0] - firstTimeStep);
+            final int depths = hasDepth ? Math.min(depthChunk, shape[1] - firstDepth) : 1;
+            try {
+                block = blockFlights.execute(key, new Callable<Block>() {
+                    @Override
+                    public Block call() throws IOException, InvalidRangeException {
+                        int[] origin = new int[shape.length];
+                        int[] blockShape = shape.clone();
+                        origin[0] = firstTimeStep;
+                        blockShape[0] = timeSteps;
+                        if (hasDepth) {
+                            origin[1] = firstDepth;
+                            blockShape[1] = depths;
+                        }
+
+                        Block result = new Block(depths, toFloats(fileVariable.read(origin, blockShape),
+                                fileVariable.getDataType()));
+                        put(key, result);
+                        return result;
+                    }
+                });
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof InvalidRangeException) {
+                    throw (InvalidRangeException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw (Error) cause;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a block of "
+                        + fileVariable.getFullName());
+            }
+        }
+
+        int slabSize = shape[shape.length - 2] * shape[shape.length - 1];
+        int slabInBlock = (timeStepWithinFile - firstTimeStep) * block.depths + (depth - firstDepth);
+        System.arraycopy(block.data, slabInBlock * slabSize, dst, 0, Math.min(slabSize, dst.length));
+    }
+
+    private synchronized void put(BlockKey key, Block block) {
+        Block previous = blocks.put(key, block);
+        if (previous != null) {
+            bytes -= previous.data.length * 4L;
+        }
+        bytes += block.data.length * 4L;
+
+        Iterator<Map.Entry<BlockKey, Block>> it = blocks.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<BlockKey, Block> eldest = it.next();
+            it.remove();
+            bytes -= eldest.getValue().data.length * 4L;
+        }
+    }
+
+    private synchronized int[] getChunkShape(File file, Variable fileVariable) {
+        String key = file.getPath() + ":" + fileVariable.getFullName();
+        if (chunkShapes.containsKey(key)) {
+            return chunkShapes.get(key);
+        }
+
+        int[] chunkShape = null;
+        Attribute chunkSizes = fileVariable.findAttribute(CHUNK_SIZES_ATTRIBUTE);
+        if (chunkSizes != null && !chunkSizes.isString()) {
+            chunkShape = new int[chunkSizes.getLength()];
+            for (int i = 0; i < chunkShape.length; i++) {
+                chunkShape[i] = chunkSizes.getNumericValue(i).intValue();
+            }
+            logger.debug("Chunk layout of " + fileVariable.getFullName() + " in " + file.getName() + ": "
+                    + Arrays.toString(chunkShape));
+        }
+        chunkShapes.put(key, chunkShape);
+        return chunkShape;
+    }
+
+    private static float[] toFloats(Array array, DataType dataType) {
+        if (dataType == DataType.FLOAT) {
+            return (float[]) array.get1DJavaArray(float.class);
+        }
+
+        double[] dData = (double[]) array.get1DJavaArray(double.class);
+        float[] result = new float[dData.length];
+        for (int i = 0; i < dData.length; i++) {
+            result[i] = (float) dData[i];
+        }
+        return result;
+    }
+
+    public synchronized void clear() {
+        blocks.clear();
+        bytes = 0;
+
+        logger.debug("Chunk cache cleared, hits: " + hits.get() + " misses: " + misses.get());
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+}
@@ -0,0 +1,129 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of whole (depth, lat, lon) columns, keyed by variable and timestep.
+ * Once the column of a timestep is in memory, every depth of it can be served
+ * without going back to the file. The least recently used columns are dropped
+ * when the cache grows beyond its byte budget.
+ */
+public class DepthSlabCache {
+    private final static Logger logger = LoggerFactory.getLogger(DepthSlabCache.class);
+
+    private static class Key {
+        private final String varName;
+        private final int frameIndex;
+
+        public Key(String varName, int frameIndex) {
+            this.varName = varName;
+            this.frameIndex = frameIndex;
+        }
+
+        @Override
+        public int hashCode() {
+            return varName.hashCode() * 31 + frameIndex;
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            if (this == thatObject)
+                return true;
+            if (!(thatObject instanceof Key))
+                return false;
+
+            Key that = (Key) thatObject;
+            return frameIndex == that.frameIndex && varName.compareTo(that.varName) == 0;
+        }
+    }
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, float[]> columns;
+    private long bytes = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public DepthSlabCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+
+        // Access order, so iteration starts at the least recently used column.
+        columns = new LinkedHashMap<Key, float[]>(16, 0.75f, true);
+    }
+
+    /**
+     * @return the cached column, or null if it is not in the cache.
+     */
+    public synchronized float[] get(String varName, int frameIndex) {
+        float[] column = columns.get(new Key(varName, frameIndex));
+        if (column != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return column;
+    }
+
+    public synchronized boolean contains(String varName, int frameIndex) {
+        return columns.containsKey(new Key(varName, frameIndex));
+    }
+
+    /**
+     * @return whether a column of the given size can be kept at all.
+     */
+    public boolean fits(long columnBytes) {
+        return columnBytes <= maxBytes;
+    }
+
+    public synchronized void put(String varName, int frameIndex, float[] column) {
+        long columnBytes = column.length * 4L;
+        if (!fits(columnBytes)) {
+            return;
+        }
+
+        float[] previous = columns.put(new Key(varName, frameIndex), column);
+        if (previous != null) {
+            bytes -= previous.length * 4L;
+        }
+        bytes += columnBytes;
+
+        Iterator<Map.Entry<Key, float[]>> it = columns.entrySet().iterator();
+        while (bytes > maxBytes && it.hasNext()) {
+            Map.Entry<Key, float[]> eldest = it.next();
+            it.remove();
+            bytes -= eldest.getValue().length * 4L;
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() {
+        columns.clear();
+        bytes = 0;
+
+        logger.debug("Depth slab cache cleared, hits: " + hits.get() + " misses: " + misses.get() + " evictions: "
+                + evictions.get());
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+}
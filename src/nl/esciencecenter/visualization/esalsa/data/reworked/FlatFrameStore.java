@@ -0,0 +1,264 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.InvalidRangeException;
+
+/**
+ * Flat, frame-major float32 copy of a single variable, stored next to the
+ * data. The file starts with a small header (dimensions and the times of
+ * all frames), padded to a page boundary, followed by the
+ * [frame][depth][lat][lon] values in native byte order. The data is memory
+ * mapped, so fetching a slice is a copy out of the page cache instead of a
+ * read through netcdf-java.
+ */
+public class FlatFrameStore {
+    private final static Logger logger = LoggerFactory.getLogger(FlatFrameStore.class);
+
+    private static final int MAGIC = 0x45534646;
+    private static final int VERSION = 1;
+    private static final int PAGE_SIZE = 4096;
+
+    private final File storeFile;
+    private final int numFrames;
+    private final int numDepths;
+    private final int slabSize;
+    private final int framesPerSegment;
+    private final FloatBuffer[] segments;
+
+    private FlatFrameStore(File storeFile, int numFrames, int numDepths, int slabSize, long dataOffset,
+            ByteOrder byteOrder) throws IOException {
+        this.storeFile = storeFile;
+        this.numFrames = numFrames;
+        this.numDepths = numDepths;
+        this.slabSize = slabSize;
+
+        // A single mapping can not exceed 2GB, so map the data in segments
+        // of whole frames.
+        long frameBytes = 4L * numDepths * slabSize;
+        framesPerSegment = (int) Math.max(1, Integer.MAX_VALUE / frameBytes);
+        int numSegments = (numFrames + framesPerSegment - 1) / framesPerSegment;
+        segments = new FloatBuffer[numSegments];
+
+        RandomAccessFile raf = new RandomAccessFile(storeFile, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            for (int s = 0; s < numSegments; s++) {
+                int framesInSegment = Math.min(framesPerSegment, numFrames - s * framesPerSegment);
+                segments[s] = channel
+                        .map(FileChannel.MapMode.READ_ONLY, dataOffset + s * framesPerSegment * frameBytes,
+                                framesInSegment * frameBytes).order(byteOrder).asFloatBuffer();
+            }
+        } finally {
+            // The mappings stay valid after the file is closed.
+            raf.close();
+        }
+    }
+
+    /**
+     * @return whether a single frame (all depths) of the variable fits in one
+     *         mapping. Larger frames are read from the NetCDF files instead.
+     */
+    public static boolean canStore(NCDFVariable variable) {
+        long frameBytes = 4L * Math.max(1, variable.getHeightDimensionSize()) * variable.getLatDimensionSize()
+                * variable.getLonDimensionSize();
+        return frameBytes <= Integer.MAX_VALUE;
+    }
+
+    /**
+     * @return the store file for the given variable of the given dataset (see
+     *         {@link NCDFCatalogFile#getDatasetKey(File)}) in the given
+     *         directory.
+     */
+    public static File getStoreFile(File directory, String datasetKey, String varName) {
+        return new File(directory, "." + varName.replaceAll("[^A-Za-z0-9_.-]", "_") + "." + datasetKey + ".frames");
+    }
+
+    /**
+     * Open the store for this variable, if there is one that matches the
+     * dimensions and times of the variable and is newer than the data files
+     * it was made from.
+     *
+     * @return the store, or null if there is no usable store.
+     */
+    public static FlatFrameStore open(File storeFile, NCDFVariable variable, long newestDataFile) {
+        if (!storeFile.exists() || storeFile.lastModified() < newestDataFile) {
+            return null;
+        }
+        if (!canStore(variable)) {
+            logger.warn("Frames of " + variable.getName() + " are too large to map, reading from the NetCDF files.");
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.debug("Ignoring frame store with unknown format: " + storeFile);
+                return null;
+            }
+            ByteOrder byteOrder = in.readBoolean() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            int numFrames = in.readInt();
+            int numDepths = in.readInt();
+            int latSize = in.readInt();
+            int lonSize = in.readInt();
+
+            if (numFrames != variable.getNumberOfTimeSteps()
+                    || numDepths != Math.max(1, variable.getHeightDimensionSize())
+                    || latSize != variable.getLatDimensionSize() || lonSize != variable.getLonDimensionSize()) {
+                logger.debug("Frame store " + storeFile.getName() + " does not match the data, ignoring it.");
+                return null;
+            }
+            for (int t = 0; t < numFrames; t++) {
+                if (in.readDouble() != variable.getTimeAt(t)) {
+                    logger.debug("Frame store " + storeFile.getName() + " does not match the data, ignoring it.");
+                    return null;
+                }
+            }
+
+            long dataOffset = getDataOffset(numFrames);
+            long expectedLength = dataOffset + 4L * numFrames * numDepths * latSize * lonSize;
+            if (storeFile.length() != expectedLength) {
+                logger.debug("Frame store " + storeFile.getName() + " is truncated, ignoring it.");
+                return null;
+            }
+
+            return new FlatFrameStore(storeFile, numFrames, numDepths, latSize * lonSize, dataOffset, byteOrder);
+        } catch (IOException e) {
+            logger.debug("IOException caught in frame store: " + e.getMessage());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.debug("IOException caught in frame store: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Write all frames of the variable to the store file. The store is
+     * written to a temporary file first, so an interrupted export never
+     * leaves a partial store behind.
+     *
+     * @return false if the export was interrupted, or the frames of the
+     *         variable are too large to store (see
+     *         {@link #canStore(NCDFVariable)}).
+     */
+    public static boolean export(NCDFVariable variable, File storeFile) throws IOException,
+            NoSuchSequenceNumberException, InvalidRangeException {
+        if (!canStore(variable)) {
+            logger.warn("Frames of " + variable.getName() + " are too large to map, not exporting them.");
+            return false;
+        }
+        long startTime = System.currentTimeMillis();
+
+        int numFrames = variable.getNumberOfTimeSteps();
+        int numDepths = Math.max(1, variable.getHeightDimensionSize());
+        int slabSize = variable.getLatDimensionSize() * variable.getLonDimensionSize();
+        long dataOffset = getDataOffset(numFrames);
+
+        File tempFile = new File(storeFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        boolean completed = false;
+        try {
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+            header.writeInt(numFrames);
+            header.writeInt(numDepths);
+            header.writeInt(variable.getLatDimensionSize());
+            header.writeInt(variable.getLonDimensionSize());
+            for (int t = 0; t < numFrames; t++) {
+                header.writeDouble(variable.getTimeAt(t));
+            }
+            header.write(new byte[(int) (dataOffset - header.size())]);
+            header.flush();
+
+            FileChannel channel = out.getChannel();
+            float[] slab = new float[slabSize];
+            ByteBuffer buffer = ByteBuffer.allocateDirect(4 * slabSize).order(ByteOrder.nativeOrder());
+            for (int t = 0; t < numFrames; t++) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                for (int d = 0; d < numDepths; d++) {
+                    variable.readData(t, d, slab);
+
+                    buffer.clear();
+                    buffer.asFloatBuffer().put(slab);
+                    buffer.limit(4 * slabSize);
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            }
+            completed = true;
+        } finally {
+            out.close();
+            if (!completed) {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        }
+
+        Files.move(tempFile.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        logger.debug("Exported " + variable.getName() + " to " + storeFile.getName() + " in "
+                + (System.currentTimeMillis() - startTime) + " ms.");
+        return true;
+    }
+
+    private static long getDataOffset(int numFrames) {
+        long headerSize = 4 + 4 + 1 + 4 * 4 + 8L * numFrames;
+        return ((headerSize + PAGE_SIZE - 1) / PAGE_SIZE) * PAGE_SIZE;
+    }
+
+    /**
+     * @return a read-only view on the (lat, lon) slice of the given frame and
+     *         depth, directly on the mapped file.
+     */
+    public FloatBuffer getSlab(int frameIndex, int depth) throws NoSuchSequenceNumberException {
+        if (frameIndex < 0 || frameIndex >= numFrames || depth < 0 || depth >= numDepths) {
+            throw new NoSuchSequenceNumberException("Frame " + frameIndex + " at depth " + depth
+                    + " requested but not available.");
+        }
+        FloatBuffer view = segments[frameIndex / framesPerSegment].duplicate();
+        int position = ((frameIndex % framesPerSegment) * numDepths + depth) * slabSize;
+        view.position(position);
+        view.limit(position + slabSize);
+        return view.slice().asReadOnlyBuffer();
+    }
+
+    public void read(int frameIndex, int depth, float[] dst) throws NoSuchSequenceNumberException {
+        FloatBuffer view = getSlab(frameIndex, depth);
+        view.get(dst, 0, Math.min(slabSize, dst.length));
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    public File getStoreFile() {
+        return storeFile;
+    }
+}
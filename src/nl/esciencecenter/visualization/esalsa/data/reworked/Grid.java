@@ -0,0 +1,115 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+/**
+ * The horizontal grid of one or more variables: its dimensions, the latitude
+ * and longitude coordinates and everything derived from those. Variables on
+ * the same grid share a single instance, see {@link GridRegistry}.
+ */
+public class Grid {
+    private final int latSize;
+    private final int lonSize;
+    private final long checksum;
+    private final float[] latitudes;
+    private final float[] longitudes;
+    private final float minLatitude;
+    private final float maxLatitude;
+
+    public Grid(int latSize, int lonSize, long checksum, float[] latitudes, float[] longitudes, float fillValue) {
+        this.latSize = latSize;
+        this.lonSize = lonSize;
+        this.checksum = checksum;
+        this.latitudes = latitudes;
+        this.longitudes = longitudes;
+
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        if (latitudes != null) {
+            for (float value : latitudes) {
+                if (value != fillValue) {
+                    if (value < min) {
+                        min = value;
+                    }
+                    if (value > max) {
+                        max = value;
+                    }
+                }
+            }
+        }
+        if (min > max) {
+            min = -90f;
+            max = 90f;
+        }
+        minLatitude = min;
+        maxLatitude = max;
+    }
+
+    /**
+     * @return whether the coordinates are given per cell (a curvilinear grid)
+     *         rather than per row and column.
+     */
+    public boolean isCurvilinear() {
+        return latitudes != null && lonSize > 1 && latitudes.length == latSize * lonSize;
+    }
+
+    /**
+     * @return the latitude of every (lat, lon) cell, expanding the
+     *         coordinates of a rectilinear grid if needed.
+     */
+    public float[] getLatitudesPerCell() {
+        if (latitudes == null || isCurvilinear()) {
+            return latitudes;
+        }
+        float[] result = new float[latSize * lonSize];
+        for (int j = 0; j < latSize; j++) {
+            for (int i = 0; i < lonSize; i++) {
+                result[j * lonSize + i] = latitudes[j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the longitude of every (lat, lon) cell, expanding the
+     *         coordinates of a rectilinear grid if needed.
+     */
+    public float[] getLongitudesPerCell() {
+        if (longitudes == null || longitudes.length == latSize * lonSize) {
+            return longitudes;
+        }
+        float[] result = new float[latSize * lonSize];
+        for (int j = 0; j < latSize; j++) {
+            for (int i = 0; i < lonSize; i++) {
+                result[j * lonSize + i] = longitudes[i];
+            }
+        }
+        return result;
+    }
+
+    public int getLatSize() {
+        return latSize;
+    }
+
+    public int getLonSize() {
+        return lonSize;
+    }
+
+    public long getChecksum() {
+        return checksum;
+    }
+
+    public float[] getLatitudes() {
+        return latitudes;
+    }
+
+    public float[] getLongitudes() {
+        return longitudes;
+    }
+
+    public float getMinLatitude() {
+        return minLatitude;
+    }
+
+    public float getMaxLatitude() {
+        return maxLatitude;
+    }
+}
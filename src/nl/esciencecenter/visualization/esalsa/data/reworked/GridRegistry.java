@@ -0,0 +1,164 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.DataType;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+/**
+ * Hands out the {@link Grid} of a variable. Grids are keyed by their
+ * dimensions and a checksum of their coordinates, so all variables (in all
+ * datasets) on the same grid share one instance, and the coordinates of a
+ * grid are only read and processed once.
+ */
+public class GridRegistry {
+    private final static Logger logger = LoggerFactory.getLogger(GridRegistry.class);
+
+    private static final int CHECKSUM_BLOCK_SIZE = 65536;
+
+    private static class GridKey {
+        private final int latSize;
+        private final int lonSize;
+        private final long checksum;
+
+        public GridKey(int latSize, int lonSize, long checksum) {
+            this.latSize = latSize;
+            this.lonSize = lonSize;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public int hashCode() {
+            return (latSize * 31 + lonSize) * 31 + (int) (checksum ^ (checksum >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object thatObject) {
+            if (this == thatObject)
+                return true;
+            if (!(thatObject instanceof GridKey))
+                return false;
+
+            GridKey that = (GridKey) thatObject;
+            return latSize == that.latSize && lonSize == that.lonSize && checksum == that.checksum;
+        }
+    }
+
+    private final Map<GridKey, Grid> grids;
+    // Variables in the same file usually share their coordinates, so those
+    // are only read (and checksummed) once per file.
+    private final Map<String, Grid> gridsByCoordinates;
+
+    public GridRegistry() {
+        grids = new HashMap<GridKey, Grid>();
+        gridsByCoordinates = new HashMap<String, Grid>();
+    }
+
+    /**
+     * @return the grid of the given variable, as found in the given file.
+     */
+    public Grid getGrid(File file, String varName, int latSize, int lonSize, NetcdfFilePool filePool)
+            throws IOException {
+        NetcdfFile ncfile = filePool.acquire(file);
+        boolean reusable = false;
+        try {
+            Variable variable = ncfile.findVariable(varName);
+            Variable latitudes = NCDFVariable.getLatitudeVariable(ncfile, variable);
+            Variable longitudes = NCDFVariable.getLongitudeVariable(ncfile, variable);
+
+            String coordinatesKey = file.getPath() + ":" + latSize + "x" + lonSize + ":"
+                    + (latitudes == null ? "" : latitudes.getFullName()) + ":"
+                    + (longitudes == null ? "" : longitudes.getFullName());
+            synchronized (this) {
+                Grid grid = gridsByCoordinates.get(coordinatesKey);
+                if (grid != null) {
+                    reusable = true;
+                    return grid;
+                }
+            }
+
+            float[] latValues = readCoordinate(latitudes);
+            float[] lonValues = readCoordinate(longitudes);
+            reusable = true;
+
+            CRC32 crc = new CRC32();
+            update(crc, latValues);
+            update(crc, lonValues);
+            GridKey key = new GridKey(latSize, lonSize, crc.getValue());
+
+            synchronized (this) {
+                Grid grid = grids.get(key);
+                if (grid == null) {
+                    float fillValue = latitudes == null ? Float.NEGATIVE_INFINITY : getFillValue(latitudes);
+                    grid = new Grid(latSize, lonSize, key.checksum, latValues, lonValues, fillValue);
+                    grids.put(key, grid);
+                    logger.debug("New " + latSize + "x" + lonSize + (grid.isCurvilinear() ? " curvilinear" : "")
+                            + " grid found for " + varName + ", latitudes between " + grid.getMinLatitude() + " and "
+                            + grid.getMaxLatitude());
+                }
+                gridsByCoordinates.put(coordinatesKey, grid);
+                return grid;
+            }
+        } finally {
+            if (reusable) {
+                filePool.release(file, ncfile);
+            } else {
+                filePool.discard(file, ncfile);
+            }
+        }
+    }
+
+    private static float[] readCoordinate(Variable coordinate) throws IOException {
+        if (coordinate == null) {
+            return null;
+        }
+
+        if (coordinate.getDataType() == DataType.FLOAT) {
+            return (float[]) coordinate.read().get1DJavaArray(float.class);
+        }
+
+        double[] dData = (double[]) coordinate.read().get1DJavaArray(double.class);
+        float[] result = new float[dData.length];
+        for (int i = 0; i < dData.length; i++) {
+            result[i] = (float) dData[i];
+        }
+        return result;
+    }
+
+    private static void update(CRC32 crc, float[] values) {
+        if (values == null) {
+            crc.update(0);
+            return;
+        }
+        ByteBuffer block = ByteBuffer.allocate(4 * Math.min(values.length, CHECKSUM_BLOCK_SIZE));
+        for (int offset = 0; offset < values.length; offset += CHECKSUM_BLOCK_SIZE) {
+            int length = Math.min(CHECKSUM_BLOCK_SIZE, values.length - offset);
+            block.clear();
+            block.asFloatBuffer().put(values, offset, length);
+            crc.update(block.array(), 0, 4 * length);
+        }
+    }
+
+    private static float getFillValue(Variable variable) {
+        Attribute fillValue = variable.findAttribute("_FillValue");
+        if (fillValue == null || fillValue.isString()) {
+            return Float.NEGATIVE_INFINITY;
+        }
+        return fillValue.getNumericValue().floatValue();
+    }
+
+    public synchronized void clear() {
+        grids.clear();
+        gridsByCoordinates.clear();
+    }
+}
@@ -0,0 +1,283 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import nl.esciencecenter.visualization.esalsa.data.FetchScheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.ma2.Array;
+import ucar.nc2.Attribute;
+import ucar.nc2.NetcdfFile;
+import ucar.nc2.Variable;
+
+/**
+ * Metadata of all compatible variables in a set of NetCDF files. Every file
+ * is opened exactly once, the files are scanned in parallel as background
+ * work of the fetch scheduler.
+ */
+public class NCDFCatalog {
+    private final static Logger logger = LoggerFactory.getLogger(NCDFCatalog.class);
+
+    /**
+     * Metadata of a single variable within a single file.
+     */
+    public static class VariableEntry {
+        private final File file;
+        private final String name;
+        private final String description;
+        private final String units;
+        private final int heightDimensionSize;
+        private final int latDimensionSize;
+        private final int lonDimensionSize;
+        private final double[] times;
+        private final float fillValue;
+
+        public VariableEntry(File file, String name, String description, String units, int heightDimensionSize,
+                int latDimensionSize, int lonDimensionSize, double[] times, float fillValue) {
+            this.file = file;
+            this.name = name;
+            this.description = description;
+            this.units = units;
+            this.heightDimensionSize = heightDimensionSize;
+            this.latDimensionSize = latDimensionSize;
+            this.lonDimensionSize = lonDimensionSize;
+            this.times = times;
+            this.fillValue = fillValue;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getUnits() {
+            return units;
+        }
+
+        public int getHeightDimensionSize() {
+            return heightDimensionSize;
+        }
+
+        public int getLatDimensionSize() {
+            return latDimensionSize;
+        }
+
+        public int getLonDimensionSize() {
+            return lonDimensionSize;
+        }
+
+        public double[] getTimes() {
+            return times;
+        }
+
+        public float getFillValue() {
+            return fillValue;
+        }
+    }
+
+    /**
+     * The variables found in a single file.
+     */
+    public static class FileEntry {
+        private final File file;
+        private final List<VariableEntry> variables;
+
+        public FileEntry(File file, List<VariableEntry> variables) {
+            this.file = file;
+            this.variables = variables;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public List<VariableEntry> getVariables() {
+            return variables;
+        }
+    }
+
+    private static class ScanTask implements Callable<FileEntry> {
+        private final File file;
+        private final NetcdfFilePool filePool;
+        private final NCDFCatalogFile catalogFile;
+
+        public ScanTask(File file, NetcdfFilePool filePool, NCDFCatalogFile catalogFile) {
+            this.file = file;
+            this.filePool = filePool;
+            this.catalogFile = catalogFile;
+        }
+
+        @Override
+        public FileEntry call() throws IOException {
+            // Only files that are new or have changed since the catalog was
+            // written need to be opened.
+            FileEntry entry = null;
+            if (catalogFile != null) {
+                entry = catalogFile.getFileEntry(file);
+            }
+            if (entry == null) {
+                entry = scanFile(file, filePool);
+                if (catalogFile != null) {
+                    catalogFile.putFileEntry(entry);
+                }
+            }
+            return entry;
+        }
+    }
+
+    private final List<FileEntry> fileEntries;
+    private final LinkedHashMap<String, List<VariableEntry>> variableEntries;
+
+    public NCDFCatalog(List<FileEntry> fileEntries) {
+        this.fileEntries = fileEntries;
+
+        // Keep the variables in order of discovery, and their entries in
+        // order of the files.
+        variableEntries = new LinkedHashMap<String, List<VariableEntry>>();
+        for (FileEntry fileEntry : fileEntries) {
+            for (VariableEntry entry : fileEntry.getVariables()) {
+                List<VariableEntry> entries = variableEntries.get(entry.getName());
+                if (entries == null) {
+                    entries = new ArrayList<VariableEntry>();
+                    variableEntries.put(entry.getName(), entries);
+                }
+                entries.add(entry);
+            }
+        }
+    }
+
+    /**
+     * Scan the given (sorted) files in parallel. Files for which the catalog
+     * file (which may be null) holds an up-to-date entry are not opened.
+     */
+    public static NCDFCatalog scan(List<File> files, NetcdfFilePool filePool, NCDFCatalogFile catalogFile,
+            FetchScheduler scheduler) {
+        long startTime = System.currentTimeMillis();
+
+        List<ScanTask> tasks = new ArrayList<ScanTask>(files.size());
+        for (File file : files) {
+            tasks.add(new ScanTask(file, filePool, catalogFile));
+        }
+
+        List<FileEntry> fileEntries = new ArrayList<FileEntry>(files.size());
+        try {
+            List<Future<FileEntry>> scanned = scheduler.invokeAll(FetchScheduler.Stage.IO,
+                    FetchScheduler.Priority.BACKGROUND, tasks);
+            for (int i = 0; i < scanned.size(); i++) {
+                try {
+                    fileEntries.add(scanned.get(i).get());
+                } catch (ExecutionException e) {
+                    logger.warn("Skipping " + files.get(i).getName() + ", it could not be read: "
+                            + e.getCause().getMessage());
+                } catch (CancellationException e) {
+                    logger.debug("Skipping " + files.get(i).getName() + ", shutting down.");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Scan of " + files.size() + " files interrupted.");
+        }
+
+        logger.debug("Scanned " + files.size() + " files in " + (System.currentTimeMillis() - startTime) + " ms.");
+
+        return new NCDFCatalog(fileEntries);
+    }
+
+    public static FileEntry scanFile(File file, NetcdfFilePool filePool) throws IOException {
+        List<VariableEntry> entries = new ArrayList<VariableEntry>();
+
+        NetcdfFile ncfile = filePool.acquire(file);
+        boolean reusable = false;
+        try {
+            // Variables in the same file usually share their time
+            // coordinate, so read each of those only once.
+            Map<String, double[]> timesPerCoordinate = new HashMap<String, double[]>();
+
+            for (Variable v : ncfile.getVariables()) {
+                if (v.getShape().length > 1 && NCDFVariable.isCompatible(ncfile, v)) {
+                    Variable timeVar = NCDFVariable.getTimeVariable(ncfile, v);
+                    if (timeVar == null) {
+                        continue;
+                    }
+                    double[] times = timesPerCoordinate.get(timeVar.getFullName());
+                    if (times == null) {
+                        times = readTimes(timeVar);
+                        timesPerCoordinate.put(timeVar.getFullName(), times);
+                    }
+
+                    // The latitude bounds come from the grid of the variable
+                    // (read once per grid, when it is activated), so the
+                    // latitudes are not read here.
+                    entries.add(new VariableEntry(file, v.getFullName(), v.getDescription(), v.getUnitsString(),
+                            NCDFVariable.getHeightDimensionSize(ncfile, v),
+                            NCDFVariable.getLatitudeDimensionSize(ncfile, v),
+                            NCDFVariable.getLongitudeDimensionSize(ncfile, v), times, getFillValue(v)));
+                }
+            }
+            reusable = true;
+        } finally {
+            if (reusable) {
+                filePool.release(file, ncfile);
+            } else {
+                filePool.discard(file, ncfile);
+            }
+        }
+
+        return new FileEntry(file, entries);
+    }
+
+    private static double[] readTimes(Variable timeVar) throws IOException {
+        Array timeArray = timeVar.read();
+        double[] times = new double[(int) timeArray.getSize()];
+        for (int t = 0; t < times.length; t++) {
+            times[t] = timeArray.getDouble(t);
+        }
+        return times;
+    }
+
+    private static float getFillValue(Variable variable) {
+        float fillValue = Float.NEGATIVE_INFINITY;
+        for (Attribute a : variable.getAttributes()) {
+            if (a.getFullName().compareTo("_FillValue") == 0) {
+                fillValue = a.getNumericValue().floatValue();
+            }
+        }
+        return fillValue;
+    }
+
+    public List<FileEntry> getFileEntries() {
+        return fileEntries;
+    }
+
+    public List<String> getVariableNames() {
+        return new ArrayList<String>(variableEntries.keySet());
+    }
+
+    public List<VariableEntry> getVariableEntries(String name) {
+        List<VariableEntry> entries = variableEntries.get(name);
+        if (entries == null) {
+            return Collections.emptyList();
+        }
+        return entries;
+    }
+}
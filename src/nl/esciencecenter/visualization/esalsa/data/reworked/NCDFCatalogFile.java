@@ -0,0 +1,309 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Versioned binary sidecar file that stores the {@link NCDFCatalog} entries
+ * of every file next to the data, together with the value bounds of the
+ * variables. Entries are only reused when the size and modification time of
+ * the file still match, so only new or changed files need to be scanned again.
+ */
+public class NCDFCatalogFile {
+    private final static Logger logger = LoggerFactory.getLogger(NCDFCatalogFile.class);
+
+    private static final int MAGIC = 0x45534C43;
+    // Version 2 keys the value bounds by dataset as well as by variable.
+    private static final int VERSION = 3;
+
+    private final static Pattern DIGITS = Pattern.compile("[0-9]+");
+
+    private final File catalogFile;
+
+    private static class Fingerprint {
+        private final long size;
+        private final long lastModified;
+
+        public Fingerprint(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public Fingerprint(File file) {
+            this(file.length(), file.lastModified());
+        }
+
+        public boolean matches(File file) {
+            return size == file.length() && lastModified == file.lastModified();
+        }
+    }
+
+    private final Map<String, Fingerprint> fingerprints;
+    private final Map<String, NCDFCatalog.FileEntry> fileEntries;
+    private final Map<String, float[]> valueBounds;
+
+    private boolean changed = false;
+
+    public NCDFCatalogFile(String path) {
+        catalogFile = new File(path + File.separator + ".visualizationCatalog");
+
+        fingerprints = new HashMap<String, Fingerprint>();
+        fileEntries = new HashMap<String, NCDFCatalog.FileEntry>();
+        valueBounds = new HashMap<String, float[]>();
+    }
+
+    /**
+     * Read the catalog from disk, if there is a valid one.
+     */
+    public synchronized void load() {
+        if (!catalogFile.exists()) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(catalogFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                logger.debug("Ignoring catalog with unknown format: " + catalogFile);
+                return;
+            }
+
+            int numFiles = in.readInt();
+            for (int i = 0; i < numFiles; i++) {
+                String path = in.readUTF();
+                Fingerprint fingerprint = new Fingerprint(in.readLong(), in.readLong());
+                File file = new File(path);
+
+                int numVariables = in.readInt();
+                List<NCDFCatalog.VariableEntry> variables = new ArrayList<NCDFCatalog.VariableEntry>(numVariables);
+                for (int v = 0; v < numVariables; v++) {
+                    String name = in.readUTF();
+                    String description = readNullableString(in);
+                    String units = readNullableString(in);
+                    int heightDimensionSize = in.readInt();
+                    int latDimensionSize = in.readInt();
+                    int lonDimensionSize = in.readInt();
+                    double[] times = new double[in.readInt()];
+                    for (int t = 0; t < times.length; t++) {
+                        times[t] = in.readDouble();
+                    }
+                    float fillValue = in.readFloat();
+
+                    variables.add(new NCDFCatalog.VariableEntry(file, name, description, units, heightDimensionSize,
+                            latDimensionSize, lonDimensionSize, times, fillValue));
+                }
+
+                fingerprints.put(path, fingerprint);
+                fileEntries.put(path, new NCDFCatalog.FileEntry(file, variables));
+            }
+
+            int numBounds = in.readInt();
+            for (int i = 0; i < numBounds; i++) {
+                String name = in.readUTF();
+                valueBounds.put(name, new float[] { in.readFloat(), in.readFloat() });
+            }
+
+            logger.debug("Catalog with " + numFiles + " files loaded in " + (System.currentTimeMillis() - startTime)
+                    + " ms.");
+        } catch (IOException e) {
+            logger.debug("IOException caught in catalog: " + e.getMessage());
+            fingerprints.clear();
+            fileEntries.clear();
+            valueBounds.clear();
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the catalog to disk if anything changed since it was loaded. The
+     * catalog is written to a temporary file first, so a crash never leaves
+     * a truncated catalog behind.
+     */
+    public synchronized void save() {
+        if (!changed) {
+            return;
+        }
+
+        File tempFile = new File(catalogFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            out.writeInt(fileEntries.size());
+            for (Map.Entry<String, NCDFCatalog.FileEntry> e : fileEntries.entrySet()) {
+                Fingerprint fingerprint = fingerprints.get(e.getKey());
+                out.writeUTF(e.getKey());
+                out.writeLong(fingerprint.size);
+                out.writeLong(fingerprint.lastModified);
+
+                List<NCDFCatalog.VariableEntry> variables = e.getValue().getVariables();
+                out.writeInt(variables.size());
+                for (NCDFCatalog.VariableEntry v : variables) {
+                    out.writeUTF(v.getName());
+                    writeNullableString(out, v.getDescription());
+                    writeNullableString(out, v.getUnits());
+                    out.writeInt(v.getHeightDimensionSize());
+                    out.writeInt(v.getLatDimensionSize());
+                    out.writeInt(v.getLonDimensionSize());
+                    double[] times = v.getTimes();
+                    out.writeInt(times.length);
+                    for (double t : times) {
+                        out.writeDouble(t);
+                    }
+                    out.writeFloat(v.getFillValue());
+                }
+            }
+
+            out.writeInt(valueBounds.size());
+            for (Map.Entry<String, float[]> e : valueBounds.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeFloat(e.getValue()[0]);
+                out.writeFloat(e.getValue()[1]);
+            }
+            out.close();
+            out = null;
+
+            Files.move(tempFile.toPath(), catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            changed = false;
+        } catch (IOException e) {
+            logger.debug("IOException caught in catalog: " + e.getMessage());
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * @return the stored entry for this file, or null if the file is unknown
+     *         or has changed since it was cataloged.
+     */
+    public synchronized NCDFCatalog.FileEntry getFileEntry(File file) {
+        String path = file.getAbsolutePath();
+        Fingerprint fingerprint = fingerprints.get(path);
+        if (fingerprint != null && fingerprint.matches(file)) {
+            return fileEntries.get(path);
+        }
+        return null;
+    }
+
+    /**
+     * Store a freshly scanned entry. The value bounds of its variables are no
+     * longer valid, since the data they were computed from has changed.
+     */
+    public synchronized void putFileEntry(NCDFCatalog.FileEntry entry) {
+        String path = entry.getFile().getAbsolutePath();
+        fingerprints.put(path, new Fingerprint(entry.getFile()));
+        fileEntries.put(path, entry);
+
+        String datasetKey = getDatasetKey(entry.getFile());
+        for (NCDFCatalog.VariableEntry v : entry.getVariables()) {
+            valueBounds.remove(getBoundsKey(datasetKey, v.getName()));
+        }
+        changed = true;
+    }
+
+    /**
+     * @return the directory the catalog (and other files derived from the
+     *         data) is stored in.
+     */
+    public File getDirectory() {
+        return catalogFile.getParentFile();
+    }
+
+    /**
+     * @return the directory and name of the file, with every run of digits in
+     *         the name replaced by a single marker. Files with the same key
+     *         belong to the same dataset. Runs that are compared usually have
+     *         the same file names, but live in their own directories.
+     */
+    public static String getFilesetKey(File file) {
+        File absoluteFile = file.getAbsoluteFile();
+        return absoluteFile.getParent() + File.separator + DIGITS.matcher(absoluteFile.getName()).replaceAll("#");
+    }
+
+    /**
+     * @return a short key for the dataset the file belongs to, for the names
+     *         of the files derived from it. Variables with the same name in
+     *         different datasets (the runs that are compared) all share the
+     *         directory of the catalog, and must not share those files.
+     */
+    public static String getDatasetKey(File file) {
+        return String.format("%08x", getFilesetKey(file).hashCode());
+    }
+
+    private static String getBoundsKey(String datasetKey, String variableName) {
+        return datasetKey + "/" + variableName;
+    }
+
+    public synchronized float readMin(String datasetKey, String variableName) {
+        float[] bounds = valueBounds.get(getBoundsKey(datasetKey, variableName));
+        if (bounds == null) {
+            return Float.NaN;
+        }
+        return bounds[0];
+    }
+
+    public synchronized float readMax(String datasetKey, String variableName) {
+        float[] bounds = valueBounds.get(getBoundsKey(datasetKey, variableName));
+        if (bounds == null) {
+            return Float.NaN;
+        }
+        return bounds[1];
+    }
+
+    public synchronized void writeBounds(String datasetKey, String variableName, float min, float max) {
+        valueBounds.put(getBoundsKey(datasetKey, variableName), new float[] { min, max });
+        changed = true;
+    }
+
+    public synchronized void removeBounds(String datasetKey, String variableName) {
+        if (valueBounds.remove(getBoundsKey(datasetKey, variableName)) != null) {
+            changed = true;
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        if (in.readBoolean()) {
+            return in.readUTF();
+        }
+        return null;
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void closeQuietly(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                logger.debug("IOException caught in catalog: " + e.getMessage());
+            }
+        }
+    }
+}
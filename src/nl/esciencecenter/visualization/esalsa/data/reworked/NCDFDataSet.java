@@ -4,65 +4,213 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import nl.esciencecenter.visualization.esalsa.ImauSettings;
+import nl.esciencecenter.visualization.esalsa.data.FetchScheduler;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ucar.nc2.Dimension;
-import ucar.nc2.NetcdfFile;
-import ucar.nc2.Variable;
+import ucar.ma2.InvalidRangeException;
 
 public class NCDFDataSet {
     private final static Logger logger = LoggerFactory.getLogger(NCDFDataSet.class);
+    private final ImauSettings settings = ImauSettings.getInstance();
+    // Fixed after construction, so lookups need no locking.
     private final List<NCDFVariable> variables;
+    private final List<String> variableNames;
+    private final Map<String, NCDFVariable> variablesByName;
+    private final List<File> files;
+    private final NetcdfFilePool filePool;
+    private final DepthSlabCache depthSlabCache;
+    private final ChunkReadPlanner chunkReadPlanner;
+    private final FetchScheduler scheduler;
+    private ExecutorService exportExecutor;
 
-    public NCDFDataSet(List<File> files) throws IOException, VariableNotCompatibleException {
-        variables = new ArrayList<NCDFVariable>();
+    public NCDFDataSet(List<File> files, NCDFCatalogFile catalogFile, GridRegistry gridRegistry,
+            FetchScheduler scheduler) throws IOException, VariableNotCompatibleException {
+        this.scheduler = scheduler;
+        List<NCDFVariable> variables = new ArrayList<NCDFVariable>();
+        List<String> variableNames = new ArrayList<String>();
+        variablesByName = new HashMap<String, NCDFVariable>();
+        filePool = new NetcdfFilePool(settings.getMaxOpenNetcdfFiles());
+        depthSlabCache = new DepthSlabCache(settings.getDepthSlabCacheSizeMB() * 1024L * 1024L);
+        chunkReadPlanner = new ChunkReadPlanner(settings.getChunkCacheSizeMB() * 1024L * 1024L);
         Collections.sort(files);
+        this.files = new ArrayList<File>(files);
+
+        // Open every file once to gather the metadata of all variables (or
+        // take it from the catalog file), and build the variables from that.
+        NCDFCatalog catalog = NCDFCatalog.scan(files, filePool, catalogFile, scheduler);
+
+        for (String name : catalog.getVariableNames()) {
+            logger.debug("Variable " + name);
+
+            NCDFVariable newVariable = new NCDFVariable(name, catalog.getVariableEntries(name), filePool,
+                    catalogFile, depthSlabCache, chunkReadPlanner, gridRegistry, scheduler);
+            variables.add(newVariable);
+            variableNames.add(name);
+            variablesByName.put(name, newVariable);
+        }
+
+        // Temporal means of the variables above, which are computed once and
+        // then kept in a frame store.
+        boolean hasVirtualVariables = false;
+        for (String specification : settings.getAggregatedVariables()) {
+            String sourceName = specification.split(":")[0].trim();
+            NCDFVariable source = variablesByName.get(sourceName);
+            if (source == null) {
+                continue;
+            }
+            AggregatedVariable aggregated = AggregatedVariable.create(specification, source);
+            if (aggregated != null && !variablesByName.containsKey(aggregated.getName())) {
+                logger.debug("Aggregated variable " + aggregated.getName());
+                variables.add(aggregated);
+                variableNames.add(aggregated.getName());
+                variablesByName.put(aggregated.getName(), aggregated);
+                hasVirtualVariables = true;
+            }
+        }
+        this.variables = Collections.unmodifiableList(variables);
+        this.variableNames = Collections.unmodifiableList(variableNames);
+
+        if (settings.isFlatFrameStore() || hasVirtualVariables) {
+            exportExecutor = Executors.newSingleThreadExecutor();
+        }
+    }
+
+    /**
+     * Activate the variable (see {@link NCDFVariable#activate()}), which is
+     * needed before it can be shown. If it does not have a flat frame store
+     * yet, it is exported to one in the background (if flat frame stores are
+     * enabled, or the variable is computed), and switches to that store as
+     * soon as it has been written.
+     */
+    public void activateVariable(String name) throws IOException {
+        final NCDFVariable variable = getVariable(name);
+        if (variable == null || variable.isActivated()) {
+            return;
+        }
+        variable.activate();
+
+        if (settings.isFlatFrameStore() || variable.isVirtual()) {
+            exportInBackground(variable);
+        }
+    }
+
+    private void exportInBackground(final NCDFVariable variable) {
+        if (exportExecutor == null || variable.hasFrameStore()) {
+            return;
+        }
+        exportExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    variable.exportFrameStore();
+                } catch (IOException | NoSuchSequenceNumberException | InvalidRangeException e) {
+                    logger.warn("Could not export " + variable.getName() + " to a frame store: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Add newly written files to this dataset. The timesteps they contain are
+     * appended to the variables that are already known, variables that only
+     * appear in the new files are ignored.
+     */
+    public void appendFiles(List<File> newFiles, NCDFCatalogFile catalogFile) {
+        Collections.sort(newFiles);
+        NCDFCatalog catalog = NCDFCatalog.scan(newFiles, filePool, catalogFile, scheduler);
+
+        List<NCDFVariable> changedVariables = new ArrayList<NCDFVariable>();
+        for (String name : catalog.getVariableNames()) {
+            NCDFVariable variable = getVariable(name);
+            if (variable == null) {
+                logger.info("Ignoring new variable " + name + ", reopen the files to show it.");
+                continue;
+            }
+            try {
+                variable.appendEntries(catalog.getVariableEntries(name));
+                changedVariables.add(variable);
+            } catch (VariableNotCompatibleException e) {
+                logger.warn(e.getMessage());
+            }
+        }
 
-        for (File file : files) {
-            logger.debug("Opening " + file.getName());
-            NetcdfFile ncfile = NetcdfFile.open(file.getAbsolutePath());
-
-            List<Variable> fileVariables = ncfile.getVariables();
-            for (Variable v : fileVariables) {
-                if (v.getShape().length > 1) {
-                    if (NCDFVariable.isCompatible(ncfile, v)) {
-                        logger.debug("Variable " + v.getFullName());
-
-                        boolean alreadyAnalysed = false;
-                        for (NCDFVariable dataSetVariable : variables) {
-                            if (dataSetVariable.getName().compareTo(v.getFullName()) == 0) {
-                                alreadyAnalysed = true;
-                            }
-                        }
-                        if (!alreadyAnalysed) {
-                            NCDFVariable newVariable = new NCDFVariable(v, files);
-                            variables.add(newVariable);
-                        }
+        // The means over the changed variables are no longer valid.
+        for (NCDFVariable variable : variables) {
+            if (variable instanceof AggregatedVariable) {
+                AggregatedVariable aggregated = (AggregatedVariable) variable;
+                if (changedVariables.contains(aggregated.getSource())) {
+                    aggregated.sourceChanged();
+                    if (aggregated.isActivated()) {
+                        exportInBackground(aggregated);
                     }
                 }
             }
         }
+
+        synchronized (this) {
+            files.addAll(newFiles);
+        }
+    }
+
+    public synchronized List<File> getFiles() {
+        return new ArrayList<File>(files);
+    }
+
+    /**
+     * Stop the bounds analyses of the variables, which are queued as
+     * background work of the scheduler.
+     */
+    public void cancelBoundsAnalyses() {
+        for (NCDFVariable variable : variables) {
+            variable.cancelBoundsAnalysis();
+        }
     }
 
-    public synchronized List<String> getVariableNames() {
-        List<String> result = new ArrayList<String>();
-        for (NCDFVariable v : variables) {
-            result.add(v.getName());
+    public void close() {
+        if (exportExecutor != null) {
+            exportExecutor.shutdownNow();
         }
-        return result;
+        cancelBoundsAnalyses();
+        filePool.close();
+        depthSlabCache.clear();
+        chunkReadPlanner.clear();
     }
 
-    public synchronized NCDFVariable getVariable(String name) {
-        NCDFVariable result = null;
-        for (NCDFVariable v : variables) {
-            if (v.getName().compareTo(name) == 0) {
-                result = v;
+    /**
+     * @return whether some of the variables are computed from others (and
+     *         change when those do).
+     */
+    public boolean hasVirtualVariables() {
+        for (NCDFVariable variable : variables) {
+            if (variable.isVirtual()) {
+                return true;
             }
         }
-        return result;
+        return false;
+    }
+
+    public NetcdfFilePool getFilePool() {
+        return filePool;
+    }
+
+    /**
+     * @return the names of the variables in this dataset (unmodifiable).
+     */
+    public List<String> getVariableNames() {
+        return variableNames;
+    }
+
+    public NCDFVariable getVariable(String name) {
+        return variablesByName.get(name);
     }
 
 }
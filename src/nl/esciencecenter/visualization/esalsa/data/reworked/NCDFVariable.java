@@ -6,21 +6,20 @@ import java.nio.ByteBuffer;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.List;
 
-import javax.media.opengl.GL3;
-
 import nl.esciencecenter.neon.math.Float2Matrix;
 import nl.esciencecenter.neon.math.Float2Vector;
-import nl.esciencecenter.neon.swing.ColormapInterpreter.Dimensions;
 import nl.esciencecenter.visualization.esalsa.CacheFileManager;
 import nl.esciencecenter.visualization.esalsa.ImauSettings;
-import nl.esciencecenter.visualization.esalsa.IntArrayTexture;
-import nl.esciencecenter.visualization.esalsa.JOCLColormapper;
+import nl.esciencecenter.visualization.esalsa.ImauSettings.BoundsMode;
 import nl.esciencecenter.visualization.esalsa.Texture2D;
+import nl.esciencecenter.visualization.esalsa.data.FetchScheduler;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -81,8 +80,30 @@ public class NCDFVariable {
 		}
 	}
 
-	private final Variable variable;
-	private final List<TimeStep> timeSteps;
+	private final String name;
+	private final String description;
+	private final String units;
+
+	// Compact index of all the timesteps of this variable, sorted by time. For
+	// every timestep we store the time in the metadata, the file it is in and
+	// the offset within that file. The index is immutable, and replaced as a
+	// whole when timesteps are appended.
+	private static class TimeIndex {
+		private final File[] files;
+		private final double[] times;
+		private final int[] fileIds;
+		private final int[] fileOffsets;
+
+		public TimeIndex(File[] files, double[] times, int[] fileIds,
+				int[] fileOffsets) {
+			this.files = files;
+			this.times = times;
+			this.fileIds = fileIds;
+			this.fileOffsets = fileOffsets;
+		}
+	}
+
+	private volatile TimeIndex timeIndex;
 
 	private int heightDimensionSize = 0;
 	private int latDimensionSize = 0;
@@ -91,167 +112,341 @@ public class NCDFVariable {
 	private float[] realLatitudeValues;
 	private float[] realLongitudeValues;
 
-	private float minimumValue, maximumValue, fillValue, minimumLatitude,
-			maximumLatitude;
+	private float minimumValue, maximumValue, fillValue;
+	// The whole globe, until the grid is known (see activate()).
+	private float minimumLatitude = -90f, maximumLatitude = 90f;
+	private float predefinedMinimum = Float.NaN,
+			predefinedMaximum = Float.NaN;
+	private volatile BoundsAnalysis boundsAnalysis;
 	
 	private List<Float2Vector> tCoords = null;
 
 	private final CacheFileManager cacheAtDataLocation;
-	private IntArrayTexture latitudeTex;
-	private IntArrayTexture longitudeTex;
+	private final NetcdfFilePool filePool;
+	private final NCDFCatalogFile catalogFile;
+	// Files derived from the data (and the bounds in the catalog) are kept
+	// per dataset, see NCDFCatalogFile.getDatasetKey.
+	private final String datasetKey;
+	private final DepthSlabCache depthSlabCache;
+	private final ChunkReadPlanner chunkReadPlanner;
+	private final FetchScheduler scheduler;
+	private volatile FlatFrameStore frameStore;
+	private final GridRegistry gridRegistry;
+	private volatile Grid grid;
+
+	// The expensive part of setting up a variable (finding its bounds) is
+	// only done once it is shown, see activate().
+	private final Object activationLock = new Object();
+	private volatile boolean activated = false;
 
 	// private final CacheFileManager cacheAtProgramLocation;
 
-	public NCDFVariable(Variable variable, List<File> filesToBeAnalysed)
+	public NCDFVariable(String name, List<NCDFCatalog.VariableEntry> entries,
+			NetcdfFilePool filePool, NCDFCatalogFile catalogFile,
+			DepthSlabCache depthSlabCache, ChunkReadPlanner chunkReadPlanner,
+			GridRegistry gridRegistry, FetchScheduler scheduler)
 			throws VariableNotCompatibleException, IOException {
+		this.filePool = filePool;
+		this.scheduler = scheduler;
+		this.gridRegistry = gridRegistry;
+		this.catalogFile = catalogFile;
+		this.depthSlabCache = depthSlabCache;
+		this.chunkReadPlanner = chunkReadPlanner;
+		this.name = name;
 		cacheAtDataLocation = settings.getCacheFileManagerAtDataLocation();
 		// cacheAtProgramLocation =
 		// settings.getCacheFileManagerAtProgramLocation();
 
-		timeSteps = new ArrayList<TimeStep>();
-		this.variable = variable;
-
-		// Loop over the files to see if the variable is in there
-		for (File file : filesToBeAnalysed) {
-			NetcdfFile ncfile = NetcdfFile.open(file.getAbsolutePath());
-
-			Variable variableInThisFile = ncfile.findVariable(variable
-					.getFullName());
-			if (variableInThisFile != null) {
-				// seems to be in there, lets analyse the dimensions and see if
-				// they match our previously found dimensions
-
-				int currentHeightDimensionSize = getHeightDimensionSize(ncfile, variable);
-				if (heightDimensionSize != currentHeightDimensionSize) {
-					if (heightDimensionSize == 0) {
-						heightDimensionSize = currentHeightDimensionSize;
-					} else {
-						throw new VariableNotCompatibleException("Variable "
-								+ variable.getFullName()
-								+ " was found with mismatching dimensions");
-					}
-				}
+		NCDFCatalog.VariableEntry firstEntry = entries.get(0);
+		datasetKey = NCDFCatalogFile.getDatasetKey(firstEntry.getFile());
+		description = firstEntry.getDescription();
+		units = firstEntry.getUnits();
+		fillValue = firstEntry.getFillValue();
 
-				int currentlatDimensionSize = getLatitudeDimensionSize(ncfile, variable);
-				if (latDimensionSize != currentlatDimensionSize) {
-					if (latDimensionSize == 0) {
-						latDimensionSize = currentlatDimensionSize;
-					} else {
-						throw new VariableNotCompatibleException("Variable "
-								+ variable.getFullName()
-								+ " was found with mismatching dimensions");
-					}
-				}
+		List<TimeStep> timeSteps = new ArrayList<TimeStep>();
 
-				int currentlonDimensionSize = getLongitudeDimensionSize(ncfile, variable);
-				if (lonDimensionSize != currentlonDimensionSize) {
-					if (lonDimensionSize == 0) {
-						lonDimensionSize = currentlonDimensionSize;
-					} else {
-						throw new VariableNotCompatibleException("Variable "
-								+ variable.getFullName()
-								+ " was found with mismatching dimensions");
-					}
-				}
+		// Loop over the entries the catalog found for this variable, and see
+		// if the dimensions match the previously found dimensions
+		for (NCDFCatalog.VariableEntry entry : entries) {
+			checkDimensions(entry);
+			addTimeSteps(entry, timeSteps);
+		}
 
-				if (latDimensionSize > 0 && lonDimensionSize > 0) {
-					// Since we didnt get an exception yet, it seems it's
-					// mappable, so we need to do our thing
-					determineLatBounds(ncfile, variableInThisFile);
-
-					// Loop over the dimensions to see if there's a time
-					// dimension
-					Variable timeVar = getTimeVariable(ncfile,
-							variableInThisFile);
-					Array timeArray = timeVar.read();
-					
-					for (int t = 0; t < timeArray.getSize(); t++) {
-						double timeInFile = timeArray.getDouble(t);
-						if (variable.getFullName().compareTo("PREC") == 0
-								|| variable.getFullName().compareTo("PRECC") == 0
-								|| variable.getFullName().compareTo("PRECL") == 0
-								|| variable.getFullName().compareTo("V") == 0
-								|| variable.getFullName().compareTo("U") == 0) {
-							timeInFile += 365.0;
-						}
-						TimeStep newTimeStep = new TimeStep(file, t, timeInFile);
-						timeSteps.add(newTimeStep);
-					}
-					
-//					if (timeSteps.size() == 1) {
-//						setTextureCoordinates(ncfile, variableInThisFile);
-//						calcTextureCoordinates(ncfile, variableInThisFile);	
-//					}
+//		System.out.println("Variable "+ name + " added with "+timeSteps.size() + " timesteps.");
+
+		Collections.sort(timeSteps);
+		buildIndex(timeSteps);
+	}
+
+	/**
+	 * Set up a variable that is computed from another variable (on the same
+	 * grid) rather than read from files, with its own times.
+	 */
+	protected NCDFVariable(String name, String description, String units,
+			NCDFVariable source, double[] times) {
+		this.filePool = source.filePool;
+		this.catalogFile = source.catalogFile;
+		this.datasetKey = source.datasetKey;
+		this.depthSlabCache = source.depthSlabCache;
+		this.chunkReadPlanner = null;
+		this.scheduler = source.scheduler;
+		this.gridRegistry = null;
+		this.name = name;
+		this.description = description;
+		this.units = units;
+		cacheAtDataLocation = settings.getCacheFileManagerAtDataLocation();
+
+		fillValue = source.getFillValue();
+		heightDimensionSize = source.getHeightDimensionSize();
+		latDimensionSize = source.getLatDimensionSize();
+		lonDimensionSize = source.getLonDimensionSize();
+		minimumLatitude = source.getMinLatitude();
+		maximumLatitude = source.getMaxLatitude();
+
+		timeIndex = new TimeIndex(new File[0], times, new int[times.length],
+				new int[times.length]);
+	}
+
+	/**
+	 * Do the expensive part of setting up this variable: open its frame store
+	 * and determine its bounds. Until this is done, only the metadata of the
+	 * variable is known. Safe to call more than once, the work is only done
+	 * the first time.
+	 */
+	public void activate() throws IOException {
+		if (activated) {
+			return;
+		}
+		synchronized (activationLock) {
+			if (activated) {
+				return;
+			}
+			long startTime = System.currentTimeMillis();
+
+			// Variables on the same grid share its coordinates (and anything
+			// derived from them).
+			grid = findGrid();
+			determineLatBounds();
+
+			// If all of this variable was exported to a flat frame store
+			// earlier, read from that instead of the NetCDF files.
+			if (settings.isFlatFrameStore() || isVirtual()) {
+				frameStore = FlatFrameStore.open(getFrameStoreFile(), this,
+						getNewestDataFileTime());
+				if (frameStore != null) {
+					logger.debug("Reading " + name + " from "
+							+ frameStore.getStoreFile().getName());
 				}
 			}
-			ncfile.close();
+
+			// Not activated if this fails, so the next call tries again.
+			try {
+				analyseBounds();
+			} catch (NoSuchSequenceNumberException | InvalidRangeException e) {
+				logger.warn("Could not determine the bounds of " + name + ": "
+						+ e.getMessage());
+				throw new IOException("Could not determine the bounds of "
+						+ name, e);
+			}
+
+			activated = true;
+			logger.debug("Variable " + name + " activated in "
+					+ (System.currentTimeMillis() - startTime) + " ms.");
 		}
-		
-//		System.out.println("Variable "+ variable.getFullName() + " added with "+timeSteps.size() + " timesteps.");
+	}
 
-		Collections.sort(timeSteps);
+	public boolean isActivated() {
+		return activated;
+	}
 
-		try {
-			analyseBounds();
-		} catch (NoSuchSequenceNumberException | InvalidRangeException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+	/**
+	 * @return whether this variable is computed from other variables instead
+	 *         of read from files. Those are always kept in a frame store once
+	 *         computed.
+	 */
+	public boolean isVirtual() {
+		return false;
+	}
+
+	Grid findGrid() throws IOException {
+		TimeIndex index = timeIndex;
+		if (gridRegistry == null || index.files.length == 0) {
+			return null;
 		}
+		return gridRegistry.getGrid(index.files[0], name, latDimensionSize,
+				lonDimensionSize, filePool);
 	}
 
-	private void setTextureCoordinates(NetcdfFile ncfile, Variable variableInFile) throws IOException {	
-		Variable latitudes = getLatitudeVariable(ncfile, variableInFile);
-		Variable longitudes = getLongitudeVariable(ncfile, variableInFile);
+	private void checkDimensions(NCDFCatalog.VariableEntry entry)
+			throws VariableNotCompatibleException {
+		int currentHeightDimensionSize = entry.getHeightDimensionSize();
+		if (heightDimensionSize != currentHeightDimensionSize) {
+			if (heightDimensionSize == 0) {
+				heightDimensionSize = currentHeightDimensionSize;
+			} else {
+				throw new VariableNotCompatibleException("Variable " + name
+						+ " was found with mismatching dimensions");
+			}
+		}
 
-		float[] realLatitudeValues = null, realLongitudeValues = null;
-		if (latitudes != null) {
-			Array netCDFArray = latitudes.read();
-			if (latitudes.getDataType() == DataType.FLOAT) {
-				realLatitudeValues = (float[]) netCDFArray.get1DJavaArray(float.class);
-			} else if (latitudes.getDataType() == DataType.DOUBLE) {
-				double[] temp = (double[]) netCDFArray.get1DJavaArray(double.class);
-				realLatitudeValues = new float[temp.length];
-				for (int i = 0; i < temp.length; i++) {
-					realLatitudeValues[i] = (float) temp[i];
-				}
+		int currentlatDimensionSize = entry.getLatDimensionSize();
+		if (latDimensionSize != currentlatDimensionSize) {
+			if (latDimensionSize == 0) {
+				latDimensionSize = currentlatDimensionSize;
+			} else {
+				throw new VariableNotCompatibleException("Variable " + name
+						+ " was found with mismatching dimensions");
 			}
 		}
-		
-		JOCLColormapper mapper = new JOCLColormapper();
-		int[] pixelArray = mapper.makeImage("dry_wet", new Dimensions(-90f,90f), realLatitudeValues, -1f,
-	            false, latitudes.getShape()[0], latitudes.getShape()[1]);
 
-        latitudeTex = new IntArrayTexture(GL3.GL_TEXTURE10, pixelArray, latitudes.getShape()[0], latitudes.getShape()[1]);
+		int currentlonDimensionSize = entry.getLonDimensionSize();
+		if (lonDimensionSize != currentlonDimensionSize) {
+			if (lonDimensionSize == 0) {
+				lonDimensionSize = currentlonDimensionSize;
+			} else {
+				throw new VariableNotCompatibleException("Variable " + name
+						+ " was found with mismatching dimensions");
+			}
+		}
+	}
 
-		if (longitudes != null) {
-			Array netCDFArray = longitudes.read();
-			if (latitudes.getDataType() == DataType.FLOAT) {
-				realLongitudeValues = (float[]) netCDFArray.get1DJavaArray(float.class);
-			} else if (latitudes.getDataType() == DataType.DOUBLE) {
-				double[] temp = (double[]) netCDFArray.get1DJavaArray(double.class);
-				realLongitudeValues = new float[temp.length];
-				for (int i = 0; i < temp.length; i++) {
-					realLongitudeValues[i] = (float) temp[i];
-				}
+	private void addTimeSteps(NCDFCatalog.VariableEntry entry,
+			List<TimeStep> timeSteps) {
+		double[] timesInFile = entry.getTimes();
+		for (int t = 0; t < timesInFile.length; t++) {
+			double timeInFile = timesInFile[t];
+			if (name.compareTo("PREC") == 0 || name.compareTo("PRECC") == 0
+					|| name.compareTo("PRECL") == 0
+					|| name.compareTo("V") == 0 || name.compareTo("U") == 0) {
+				timeInFile += 365.0;
 			}
+			TimeStep newTimeStep = new TimeStep(entry.getFile(), t,
+					timeInFile);
+			timeSteps.add(newTimeStep);
 		}
-		
-		int[] pixelArrayLon = mapper.makeImage("dry_wet", new Dimensions(0f,360f), realLongitudeValues, -1f,
-	            false, longitudes.getShape()[0], longitudes.getShape()[1]);
-
-        longitudeTex = new IntArrayTexture(GL3.GL_TEXTURE11, pixelArrayLon, longitudes.getShape()[0], longitudes.getShape()[1]);
-        
-//		List<Float2Vector> tCoords = new ArrayList<Float2Vector>();
-//		if (realLatitudeValues.length == realLongitudeValues.length) {	
-//			int length = realLatitudeValues.length;
-//			
-//			for (int i=0; i < length; i++) {
-//				tCoords.add(new Float2Vector(realLongitudeValues[i], realLatitudeValues[i]));
-//			}
-//		}	
-//		this.tCoords = tCoords;
 	}
-	
+
+	/**
+	 * Add the timesteps found in newly written files to this variable.
+	 * Timesteps later than the ones already known simply extend the index,
+	 * timesteps in between invalidate the caches that are keyed by frame
+	 * index.
+	 */
+	public synchronized void appendEntries(
+			List<NCDFCatalog.VariableEntry> entries)
+			throws VariableNotCompatibleException {
+		TimeIndex index = timeIndex;
+
+		List<TimeStep> timeSteps = new ArrayList<TimeStep>();
+		for (int i = 0; i < index.times.length; i++) {
+			timeSteps.add(new TimeStep(index.files[index.fileIds[i]],
+					index.fileOffsets[i], index.times[i]));
+		}
+
+		int knownTimeSteps = timeSteps.size();
+		for (NCDFCatalog.VariableEntry entry : entries) {
+			checkDimensions(entry);
+			addTimeSteps(entry, timeSteps);
+		}
+
+		List<TimeStep> newTimeSteps = timeSteps.subList(knownTimeSteps,
+				timeSteps.size());
+		double lastKnownTime = Double.NEGATIVE_INFINITY;
+		if (index.times.length > 0) {
+			lastKnownTime = index.times[index.times.length - 1];
+		}
+		boolean appendedAtEnd = true;
+		for (TimeStep timeStep : newTimeSteps) {
+			if (timeStep.getTimeInMetadata() <= lastKnownTime) {
+				appendedAtEnd = false;
+			}
+		}
+
+		Collections.sort(timeSteps);
+		buildIndex(timeSteps);
+
+		if (!appendedAtEnd) {
+			// The frame indices of known timesteps have shifted.
+			frameStore = null;
+			depthSlabCache.clear();
+		}
+
+		logger.debug("Appended " + newTimeSteps.size() + " timesteps to "
+				+ name + ", now " + timeIndex.times.length + " in total.");
+	}
+
+	private void buildIndex(List<TimeStep> timeSteps) {
+		int size = timeSteps.size();
+		double[] indexTimes = new double[size];
+		int[] indexFileIds = new int[size];
+		int[] indexFileOffsets = new int[size];
+
+		List<File> files = new ArrayList<File>();
+		HashMap<File, Integer> fileIds = new HashMap<File, Integer>();
+		for (int i = 0; i < size; i++) {
+			TimeStep timeStep = timeSteps.get(i);
+
+			Integer fileId = fileIds.get(timeStep.getFile());
+			if (fileId == null) {
+				fileId = files.size();
+				files.add(timeStep.getFile());
+				fileIds.put(timeStep.getFile(), fileId);
+			}
+
+			indexTimes[i] = timeStep.getTimeInMetadata();
+			indexFileIds[i] = fileId;
+			indexFileOffsets[i] = timeStep.getTimeStepWithinFile();
+		}
+		timeIndex = new TimeIndex(files.toArray(new File[files.size()]),
+				indexTimes, indexFileIds, indexFileOffsets);
+	}
+
+	private File getFrameStoreFile() {
+		return FlatFrameStore.getStoreFile(catalogFile.getDirectory(),
+				datasetKey, name);
+	}
+
+	long getNewestDataFileTime() {
+		long newest = 0;
+		for (File file : timeIndex.files) {
+			newest = Math.max(newest, file.lastModified());
+		}
+		return newest;
+	}
+
+	/**
+	 * Export all of the data of this variable to a flat frame store, and read
+	 * from that store from now on.
+	 */
+	public void exportFrameStore() throws IOException,
+			NoSuchSequenceNumberException, InvalidRangeException {
+		if (frameStore != null) {
+			return;
+		}
+		File storeFile = getFrameStoreFile();
+		if (FlatFrameStore.export(this, storeFile)) {
+			frameStore = FlatFrameStore.open(storeFile, this,
+					getNewestDataFileTime());
+		}
+	}
+
+	public boolean hasFrameStore() {
+		return frameStore != null;
+	}
+
+	/**
+	 * Replace the times of a variable that is computed rather than read, when
+	 * the data it is computed from has changed. What was derived from the old
+	 * frames (the frame store, cached columns and stored bounds) is dropped.
+	 */
+	void replaceTimes(double[] times) {
+		timeIndex = new TimeIndex(new File[0], times, new int[times.length],
+				new int[times.length]);
+		frameStore = null;
+		depthSlabCache.clear();
+		catalogFile.removeBounds(datasetKey, name);
+	}
+
 	private void calcTextureCoordinates(NetcdfFile ncfile, Variable variableInFile) throws IOException {		
 		Variable latitudes = getLatitudeVariable(ncfile, variableInFile);
 		Variable longitudes = getLongitudeVariable(ncfile, variableInFile);
@@ -309,90 +504,42 @@ public class NCDFVariable {
 //		this.tCoords = tCoords;
 	}
 
-	private void determineLatBounds(NetcdfFile ncfile, Variable variableInFile)
-			throws IOException {
-		float latMin = cacheAtDataLocation.readLatMin(variable.getFullName());
-		float latMax = cacheAtDataLocation.readLatMax(variable.getFullName());
+	private void determineLatBounds() {
+		float latMin = cacheAtDataLocation.readLatMin(name);
+		float latMax = cacheAtDataLocation.readLatMax(name);
 		// if (Float.isNaN(latMin) || Float.isNaN(latMax)) {
-		// latMin = cacheAtProgramLocation.readLatMin(variable.getFullName());
-		// latMax = cacheAtProgramLocation.readLatMax(variable.getFullName());
+		// latMin = cacheAtProgramLocation.readLatMin(name);
+		// latMax = cacheAtProgramLocation.readLatMax(name);
 		// }
-		if (Float.isNaN(latMin) || Float.isNaN(latMax)) {
-			Variable latitudes = getLatitudeVariable(ncfile, variableInFile);
-			if (latitudes != null) {
-				float fillValue = Float.NEGATIVE_INFINITY;
-				for (Attribute a : latitudes.getAttributes()) {
-					if (a.getFullName().compareTo("_FillValue") == 0) {
-						fillValue = a.getNumericValue().floatValue();
-					}
-				}
-
-				Array netCDFArray = latitudes.read();
-				realLatitudeValues = (float[]) netCDFArray
-						.get1DJavaArray(float.class);
-
-				float min = Float.POSITIVE_INFINITY;
-				float max = Float.NEGATIVE_INFINITY;
-				for (float value : realLatitudeValues) {
-					if (value != fillValue) {
-						if (value < min) {
-							min = value;
-						}
-						if (value > max) {
-							max = value;
-						}
-					}
-				}
-				minimumLatitude = min;
-				maximumLatitude = max;
-
-				// cacheAtDataLocation.writeLatMin(variableInFile.getFullName(),
-				// min);
-				// cacheAtDataLocation.writeLatMax(variableInFile.getFullName(),
-				// max);
-
-				// cacheAtProgramLocation.writeLatMin(variableInFile.getFullName(),
-				// min);
-				// cacheAtProgramLocation.writeLatMax(variableInFile.getFullName(),
-				// max);
-			} else {
-				minimumLatitude = -90f;
-				maximumLatitude = 90f;
-			}
-		} else {
+		if (!Float.isNaN(latMin) && !Float.isNaN(latMax)) {
 			maximumLatitude = latMax;
 			minimumLatitude = latMin;
+		} else if (grid != null) {
+			maximumLatitude = grid.getMaxLatitude();
+			minimumLatitude = grid.getMinLatitude();
 		}
 
-		logger.debug("latitudes for " + variable.getFullName()
-				+ " exist between " + minimumLatitude + " and "
-				+ maximumLatitude);
+		logger.debug("latitudes for " + name + " exist between "
+				+ minimumLatitude + " and " + maximumLatitude);
 	}
 
-	private void analyseBounds() throws NoSuchSequenceNumberException,
+	void analyseBounds() throws NoSuchSequenceNumberException,
 			InvalidRangeException, IOException {
-		// First, determine the fillValue, we dont want that skewing our
-		// results...
-		fillValue = Float.NEGATIVE_INFINITY;
-		for (Attribute a : variable.getAttributes()) {
-			if (a.getFullName().compareTo("_FillValue") == 0) {
-				fillValue = a.getNumericValue().floatValue();
-			}
-		}
-
+		// The fillValue was determined by the catalog, we dont want that
+		// skewing our results...
 		float resultMin = Float.NaN, resultMax = Float.NaN;
 
 		// Check the settings first to see if this value was predefined.
-		float settingsMin = settings.getVarMin(variable.getFullName());
-		float settingsMax = settings.getVarMax(variable.getFullName());
+		float settingsMin = settings.getVarMin(name);
+		float settingsMax = settings.getVarMax(name);
 		if (!Float.isNaN(settingsMin)) {
 			resultMin = settingsMin;
-			logger.debug("Settings hit for min " + variable.getFullName()
+			logger.debug("Settings hit for min " + name
 					+ " : " + resultMin);
 		}
 		if (!Float.isNaN(settingsMax)) {
 			resultMax = settingsMax;
-			logger.debug("Settings hit for max " + variable.getFullName()
+			logger.debug("Settings hit for max " + name
 					+ " : " + resultMax);
 		}
 
@@ -400,67 +547,88 @@ public class NCDFVariable {
 		// value is in there
 		if (Float.isNaN(resultMin)) {
 			float cacheMin = cacheAtDataLocation
-					.readMin(variable.getFullName());
+					.readMin(name);
 			if (!Float.isNaN(cacheMin)) {
 				resultMin = cacheMin;
-				logger.debug("Cache hit for min " + variable.getFullName()
+				logger.debug("Cache hit for min " + name
 						+ " : " + resultMin);
 			}
 		}
 
 		if (Float.isNaN(resultMax)) {
 			float cacheMax = cacheAtDataLocation
-					.readMax(variable.getFullName());
+					.readMax(name);
 			if (!Float.isNaN(cacheMax)) {
 				resultMax = cacheMax;
-				logger.debug("Cache hit for max " + variable.getFullName()
+				logger.debug("Cache hit for max " + name
 						+ " : " + resultMax);
 			}
 		}
 
+		// Then check the catalog next to the data, which holds the bounds
+		// computed in an earlier session (if the data has not changed since)
+		if (Float.isNaN(resultMin)) {
+			float catalogMin = catalogFile.readMin(datasetKey, name);
+			if (!Float.isNaN(catalogMin)) {
+				resultMin = catalogMin;
+				logger.debug("Catalog hit for min " + name + " : "
+						+ resultMin);
+			}
+		}
+
+		if (Float.isNaN(resultMax)) {
+			float catalogMax = catalogFile.readMax(datasetKey, name);
+			if (!Float.isNaN(catalogMax)) {
+				resultMax = catalogMax;
+				logger.debug("Catalog hit for max " + name + " : "
+						+ resultMax);
+			}
+		}
+
 		// if (Float.isNaN(resultMin)) {
 		// float cacheMin =
-		// cacheAtProgramLocation.readMin(variable.getFullName());
+		// cacheAtProgramLocation.readMin(name);
 		// if (!Float.isNaN(cacheMin)) {
 		// resultMin = cacheMin;
-		// logger.debug("Cache hit for min " + variable.getFullName() + " : " +
+		// logger.debug("Cache hit for min " + name + " : " +
 		// resultMin);
 		// }
 		// }
 		//
 		// if (Float.isNaN(resultMax)) {
 		// float cacheMax =
-		// cacheAtProgramLocation.readMax(variable.getFullName());
+		// cacheAtProgramLocation.readMax(name);
 		// if (!Float.isNaN(cacheMax)) {
 		// resultMax = cacheMax;
-		// logger.debug("Cache hit for max " + variable.getFullName() + " : " +
+		// logger.debug("Cache hit for max " + name + " : " +
 		// resultMax);
 		// }
 		// }
 
 		// If we have both covered by now, we're done and don't need to read the
 		// file.
+		predefinedMinimum = resultMin;
+		predefinedMaximum = resultMax;
 		if (!Float.isNaN(resultMin) && !Float.isNaN(resultMax)) {
 			minimumValue = resultMin;
 			maximumValue = resultMax;
+
+			settings.setVarMin(name, minimumValue);
+			settings.setVarMax(name, maximumValue);
 		} else {
 			// One of these is not in settings, not in cache, so we need to
-			// determine the bounds by hand.
-			float tempMin = Float.POSITIVE_INFINITY, tempMax = Float.NEGATIVE_INFINITY;
-			for (double t : getTimes()) {
-				if (heightDimensionSize == 0) {
-					float[] dataSlice = getData(t, 0);
-					for (int i = 0; i < dataSlice.length; i++) {
-						float value = dataSlice[i];
-						if (value != fillValue && value < tempMin) {
-							tempMin = value;
-						}
-						if (value != fillValue && value > tempMax) {
-							tempMax = value;
-						}
-					}
-				} else if (heightDimensionSize == 1) {
-					float[] dataSlice = getData(t, 0);
+			// determine the bounds by hand. Reading all of the data takes a
+			// long time, so we start out with provisional bounds and (unless
+			// a sample is all we want) let the full analysis run in the
+			// background.
+			final BoundsMode mode = settings.getBoundsMode();
+			if (mode == BoundsMode.EXACT) {
+				if (getNumberOfTimeSteps() > 0) {
+					float[] dataSlice = new float[latDimensionSize
+							* lonDimensionSize];
+					getData(0, 0, dataSlice);
+
+					float tempMin = Float.POSITIVE_INFINITY, tempMax = Float.NEGATIVE_INFINITY;
 					for (int i = 0; i < dataSlice.length; i++) {
 						float value = dataSlice[i];
 						if (value != fillValue && value < tempMin) {
@@ -470,116 +638,377 @@ public class NCDFVariable {
 							tempMax = value;
 						}
 					}
-					if (tempMin == Float.POSITIVE_INFINITY
-							&& tempMax == Float.NEGATIVE_INFINITY) {
-						dataSlice = getData(t, 1);
-						for (int i = 0; i < dataSlice.length; i++) {
-							float value = dataSlice[i];
-							if (value != fillValue && value < tempMin) {
-								tempMin = value;
-							}
-							if (value != fillValue && value > tempMax) {
-								tempMax = value;
-							}
-						}
-					}
-				} else {
-					for (int d = 0; d < heightDimensionSize; d++) {
-						float[] dataSlice = getData(t, d);
-						for (int i = 0; i < dataSlice.length; i++) {
-							float value = dataSlice[i];
-							if (value != fillValue && value < tempMin) {
-								tempMin = value;
+					publishBounds(tempMin, tempMax);
+				}
+			} else if (getNumberOfTimeSteps() > 0) {
+				// The 1-99% range of a sample spread over the whole variable
+				// is a good colormap range, and is not thrown off by a few
+				// outliers.
+				BoundsEstimator.Estimate estimate = BoundsEstimator
+						.estimate(this);
+				if (estimate.isValid()) {
+					publishBounds(estimate.getLowPercentile(),
+							estimate.getHighPercentile());
+				}
+			}
+
+			if (mode == BoundsMode.SAMPLED) {
+				return;
+			}
+
+			boundsAnalysis = new BoundsAnalysis(this, scheduler,
+					new BoundsAnalysis.Listener() {
+						@Override
+						public void boundsAnalysed(float min, float max,
+								boolean finished) {
+							// The running bounds of a partial analysis are
+							// no better than the sampled estimate.
+							if (!finished
+									&& mode == BoundsMode.SAMPLED_THEN_EXACT) {
+								return;
 							}
-							if (value != fillValue && value > tempMax) {
-								tempMax = value;
+							publishBounds(min, max);
+
+							if (finished) {
+								logger.debug("Calculated min " + name + " : "
+										+ min);
+								logger.debug("Calculated max " + name + " : "
+										+ max);
+
+								// Remember what we found in the data, so the
+								// next session does not have to read it all
+								// again.
+								catalogFile.writeBounds(datasetKey, name,
+										min, max);
+								catalogFile.save();
 							}
 						}
-					}
-				}
-			}
-			if (!Float.isNaN(resultMin)) {
-				minimumValue = resultMin;
-			} else {
-				minimumValue = tempMin;
-				logger.debug("Calculated min " + variable.getFullName() + " : "
-						+ tempMin);
+					});
+			boundsAnalysis.start();
+		}
+	}
 
-				// cacheAtDataLocation.writeMin(variable.getFullName(),
-				// minimumValue);
-				// cacheAtProgramLocation.writeMin(variable.getFullName(),
-				// minimumValue);
+	/**
+	 * Use the bounds found in the data for those bounds that were not
+	 * predefined in the settings or cache.
+	 */
+	void publishBounds(float dataMin, float dataMax) {
+		if (dataMin > dataMax) {
+			// Nothing but fill values seen so far.
+			return;
+		}
 
+		float newMin, newMax;
+		synchronized (this) {
+			if (Float.isNaN(predefinedMinimum)) {
+				minimumValue = dataMin;
 			}
-			if (!Float.isNaN(resultMax)) {
-				maximumValue = resultMax;
-			} else {
-				maximumValue = tempMax;
-				logger.debug("Calculated max " + variable.getFullName() + " : "
-						+ tempMax);
-
-				// cacheAtDataLocation.writeMax(variable.getFullName(),
-				// maximumValue);
-				// cacheAtProgramLocation.writeMax(variable.getFullName(),
-				// maximumValue);
+			if (Float.isNaN(predefinedMaximum)) {
+				maximumValue = dataMax;
 			}
+			newMin = minimumValue;
+			newMax = maximumValue;
 		}
 
-		settings.setVarMin(variable.getFullName(), minimumValue);
-		settings.setVarMax(variable.getFullName(), maximumValue);
+		settings.setVarMin(name, newMin);
+		settings.setVarMax(name, newMax);
 	}
 
-	public synchronized Texture2D getLatTexMap() {
-		return latitudeTex;
+	/**
+	 * @return the fraction of the data that has been analysed for its bounds.
+	 */
+	public float getBoundsAnalysisProgress() {
+		if (boundsAnalysis == null) {
+			return 1f;
+		}
+		return boundsAnalysis.getProgress();
 	}
 
-	public synchronized Texture2D getLonTexMap() {
-		return longitudeTex;
+	public void cancelBoundsAnalysis() {
+		if (boundsAnalysis != null) {
+			boundsAnalysis.cancel();
+		}
+	}
+
+	/**
+	 * @return the grid of this variable, or null if the variable has not been
+	 *         activated yet.
+	 */
+	public Grid getGrid() {
+		return grid;
+	}
+
+	// The shaders do not use lat/lon textures (yet), so none are made.
+	public Texture2D getLatTexMap() {
+		return null;
+	}
+
+	public Texture2D getLonTexMap() {
+		return null;
 	}
 	
-	public synchronized float[] getData(double time, int requestedDepth)
+	public float[] getData(double time, int requestedDepth)
+			throws NoSuchSequenceNumberException, InvalidRangeException,
+			IOException {
+		int frameIndex = getTimeIndex(time);
+		if (frameIndex < 0) {
+			throw new NoSuchSequenceNumberException("Time " + time
+					+ " requested but not available.");
+		}
+
+		float[] data = new float[latDimensionSize * lonDimensionSize];
+		getData(frameIndex, requestedDepth, data);
+
+		return data;
+	}
+
+	/**
+	 * Read a single (lat, lon) slice into the given array. The frame index is
+	 * the position of the timestep in the sorted list of times of this
+	 * variable (see {@link #getTimeIndex(double)}).
+	 */
+	public void getData(int frameIndex, int requestedDepth, float[] dst)
 			throws NoSuchSequenceNumberException, InvalidRangeException,
 			IOException {
-		File wantedFile = null;
-		TimeStep wantedTimestep = null;
-		for (TimeStep t : timeSteps) {
-			if (t.getTimeInMetadata() == time) {
-				wantedFile = t.getFile();
-				wantedTimestep = t;
+		// Timesteps appended after the store was written are not in it.
+		FlatFrameStore store = frameStore;
+		if (store != null && frameIndex < store.getNumFrames()) {
+			store.read(frameIndex, Math.max(0, requestedDepth), dst);
+			return;
+		}
+		readData(frameIndex, requestedDepth, dst);
+	}
+
+	/**
+	 * Read a single (lat, lon) slice from the NetCDF files, bypassing the
+	 * frame store.
+	 */
+	void readData(int frameIndex, int requestedDepth, float[] dst)
+			throws NoSuchSequenceNumberException, InvalidRangeException,
+			IOException {
+		TimeIndex index = timeIndex;
+		if (frameIndex < 0 || frameIndex >= index.times.length) {
+			throw new NoSuchSequenceNumberException("Frame " + frameIndex
+					+ " requested but not available.");
+		}
+		File wantedFile = index.files[index.fileIds[frameIndex]];
+		int timeStepWithinFile = index.fileOffsets[frameIndex];
+
+		// Handles are pooled, so the file header is only parsed on the first
+		// request for this file.
+		NetcdfFile netcdfFile = filePool.acquire(wantedFile);
+		boolean reusable = false;
+		try {
+			Variable fileVariable = netcdfFile.findVariable(name);
+
+			// Variables that are chunked along time or depth are read a
+			// whole chunk at a time, and the decompressed chunk is kept for
+			// the neighbouring slices.
+			boolean hasDepth = heightDimensionSize > 0;
+			if (chunkReadPlanner != null
+					&& chunkReadPlanner.isWorthwhile(wantedFile,
+							fileVariable, hasDepth)) {
+				chunkReadPlanner.read(wantedFile, fileVariable, hasDepth,
+						timeStepWithinFile, requestedDepth, dst);
+				reusable = true;
+				return;
+			}
+
+			Array netCDFArray = null;
+			if (heightDimensionSize > 0) {
+				netCDFArray = fileVariable.slice(0, timeStepWithinFile)
+						.slice(0, requestedDepth).read();
+			} else {
+				netCDFArray = fileVariable.slice(0, timeStepWithinFile).read();
+			}
+
+			if (fileVariable.getDataType() == DataType.FLOAT) {
+				float[] data = (float[]) netCDFArray
+						.get1DJavaArray(float.class);
+				System.arraycopy(data, 0, dst, 0,
+						Math.min(data.length, dst.length));
+			} else if (fileVariable.getDataType() == DataType.DOUBLE) {
+				double[] dData = (double[]) netCDFArray
+						.get1DJavaArray(double.class);
+				int length = Math.min(dData.length, dst.length);
+				for (int i = 0; i < length; i++) {
+					dst[i] = (float) dData[i];
+				}
+			}
+			reusable = true;
+		} finally {
+			if (reusable) {
+				filePool.release(wantedFile, netcdfFile);
+			} else {
+				filePool.discard(wantedFile, netcdfFile);
 			}
 		}
-		if (wantedFile == null || wantedTimestep == null) {
-			throw new NoSuchSequenceNumberException("Time " + time
+	}
+
+	/**
+	 * Copy a single (lat, lon) slice out of the depth slab cache, if the
+	 * column of the timestep was read earlier (see {@link #getColumn(int)}).
+	 * Nothing is read from the files.
+	 *
+	 * @return whether the slice was in the cache.
+	 */
+	public boolean getCachedData(int frameIndex, int requestedDepth,
+			float[] dst) {
+		if (heightDimensionSize == 0 || requestedDepth < 0
+				|| requestedDepth >= heightDimensionSize) {
+			return false;
+		}
+		float[] column = depthSlabCache.get(name, frameIndex);
+		if (column == null) {
+			return false;
+		}
+
+		int slabSize = latDimensionSize * lonDimensionSize;
+		System.arraycopy(column, requestedDepth * slabSize, dst, 0,
+				Math.min(slabSize, dst.length));
+		return true;
+	}
+
+	/**
+	 * @return whether a whole (depth, lat, lon) column of this variable fits
+	 *         in the depth slab cache. Columns that do not are not worth
+	 *         reading ahead, they would be dropped right away.
+	 */
+	public boolean isColumnCacheable() {
+		return depthSlabCache.fits(Math.max(1, heightDimensionSize) * 4L
+				* latDimensionSize * lonDimensionSize);
+	}
+
+	/**
+	 * @return the whole (depth, lat, lon) column of the given timestep, from
+	 *         the depth slab cache if possible. The column is only kept if it
+	 *         fits the cache, see {@link #isColumnCacheable()}.
+	 */
+	public float[] getColumn(int frameIndex)
+			throws NoSuchSequenceNumberException, InvalidRangeException,
+			IOException {
+		float[] column = depthSlabCache.get(name, frameIndex);
+		if (column == null) {
+			column = readColumn(frameIndex);
+			depthSlabCache.put(name, frameIndex, column);
+		}
+		return column;
+	}
+
+	public boolean isColumnCached(int frameIndex) {
+		return depthSlabCache.contains(name, frameIndex);
+	}
+
+	float[] readColumn(int frameIndex)
+			throws NoSuchSequenceNumberException, InvalidRangeException,
+			IOException {
+		TimeIndex index = timeIndex;
+		if (frameIndex < 0 || frameIndex >= index.times.length) {
+			throw new NoSuchSequenceNumberException("Frame " + frameIndex
 					+ " requested but not available.");
 		}
+		File wantedFile = index.files[index.fileIds[frameIndex]];
+		int timeStepWithinFile = index.fileOffsets[frameIndex];
 
-		NetcdfFile netcdfFile = NetcdfFile.open(wantedFile.getAbsolutePath());
-		Variable fileVariable = netcdfFile.findVariable(variable.getFullName());
+		float[] column = new float[Math.max(1, heightDimensionSize)
+				* latDimensionSize * lonDimensionSize];
 
-		Array netCDFArray = null;
+		NetcdfFile netcdfFile = filePool.acquire(wantedFile);
+		boolean reusable = false;
+		try {
+			Variable fileVariable = netcdfFile.findVariable(name);
+
+			// A single contiguous hyperslab read for all depths.
+			Array netCDFArray = fileVariable.slice(0, timeStepWithinFile)
+					.read();
+
+			if (fileVariable.getDataType() == DataType.FLOAT) {
+				float[] data = (float[]) netCDFArray
+						.get1DJavaArray(float.class);
+				System.arraycopy(data, 0, column, 0,
+						Math.min(data.length, column.length));
+			} else if (fileVariable.getDataType() == DataType.DOUBLE) {
+				double[] dData = (double[]) netCDFArray
+						.get1DJavaArray(double.class);
+				int length = Math.min(dData.length, column.length);
+				for (int i = 0; i < length; i++) {
+					column[i] = (float) dData[i];
+				}
+			}
+			reusable = true;
+		} finally {
+			if (reusable) {
+				filePool.release(wantedFile, netcdfFile);
+			} else {
+				filePool.discard(wantedFile, netcdfFile);
+			}
+		}
+		return column;
+	}
+
+	/**
+	 * Read every stride-th cell (in both directions) of a single (lat, lon)
+	 * slice, starting at the given offset. Used to sample the data without
+	 * reading all of it.
+	 */
+	public float[] getSampledData(int frameIndex, int requestedDepth,
+			int stride, int offset) throws NoSuchSequenceNumberException,
+			InvalidRangeException, IOException {
+		TimeIndex index = timeIndex;
+		if (frameIndex < 0 || frameIndex >= index.times.length) {
+			throw new NoSuchSequenceNumberException("Frame " + frameIndex
+					+ " requested but not available.");
+		}
+		File wantedFile = index.files[index.fileIds[frameIndex]];
+		int timeStepWithinFile = index.fileOffsets[frameIndex];
+
+		int latOffset = Math.min(offset, latDimensionSize - 1);
+		int lonOffset = Math.min(offset, lonDimensionSize - 1);
+		String section = latOffset + ":" + (latDimensionSize - 1) + ":"
+				+ stride + "," + lonOffset + ":" + (lonDimensionSize - 1)
+				+ ":" + stride;
 		if (heightDimensionSize > 0) {
-			netCDFArray = fileVariable
-					.slice(0, wantedTimestep.getTimeStepWithinFile())
-					.slice(0, requestedDepth).read();
+			section = timeStepWithinFile + "," + requestedDepth + ","
+					+ section;
 		} else {
-			netCDFArray = fileVariable.slice(0,
-					wantedTimestep.getTimeStepWithinFile()).read();
+			section = timeStepWithinFile + "," + section;
 		}
 
-		float[] data = null;
-		if (fileVariable.getDataType() == DataType.FLOAT) {
-			data = (float[]) netCDFArray.get1DJavaArray(float.class);
-		} else if (fileVariable.getDataType() == DataType.DOUBLE) {
-			double[] dData = (double[]) netCDFArray.get1DJavaArray(double.class);
-			data = new float[dData.length];
-			for (int i = 0; i < dData.length; i++) {
-				data[i] = (float) dData[i];
+		NetcdfFile netcdfFile = filePool.acquire(wantedFile);
+		boolean reusable = false;
+		try {
+			Variable fileVariable = netcdfFile.findVariable(name);
+			Array netCDFArray = fileVariable.read(section);
+			float[] data = (float[]) netCDFArray.get1DJavaArray(float.class);
+			reusable = true;
+			return data;
+		} finally {
+			if (reusable) {
+				filePool.release(wantedFile, netcdfFile);
+			} else {
+				filePool.discard(wantedFile, netcdfFile);
 			}
 		}
+	}
 
-		netcdfFile.close();
+	/**
+	 * @return the index of the given time in the sorted list of times of this
+	 *         variable, or -1 if this variable has no data for it.
+	 */
+	public int getTimeIndex(double time) {
+		int index = Arrays.binarySearch(timeIndex.times, time);
+		if (index < 0) {
+			return -1;
+		}
+		return index;
+	}
 
-		return data;
+	public double getTimeAt(int frameIndex) {
+		return timeIndex.times[frameIndex];
+	}
+
+	public int getNumberOfTimeSteps() {
+		return timeIndex.times.length;
 	}
 
 	public synchronized int getHeightDimensionSize() {
@@ -594,10 +1023,19 @@ public class NCDFVariable {
 		return lonDimensionSize;
 	}
 
+	/**
+	 * @return the sorted times of this variable. The array is shared and must
+	 *         not be modified.
+	 */
+	public double[] getTimeArray() {
+		return timeIndex.times;
+	}
+
 	public synchronized List<Double> getTimes() {
-		List<Double> result = new ArrayList<Double>();
-		for (TimeStep t : timeSteps) {
-			result.add(t.getTimeInMetadata());
+		double[] times = timeIndex.times;
+		List<Double> result = new ArrayList<Double>(times.length);
+		for (double t : times) {
+			result.add(t);
 		}
 		return result;
 	}
@@ -615,28 +1053,37 @@ public class NCDFVariable {
 	}
 
 	public synchronized String getName() {
-		return variable.getFullName();
+		return name;
 	}
 
 	public synchronized String getDescription() {
-		return variable.getDescription();
+		return description;
 	}
 
 	public synchronized String getUnits() {
-		return variable.getUnitsString();
+		return units;
 	}
 
-	public synchronized String getTime(double time) {
-		TimeStep wantedTimestep = null;
-		for (TimeStep t : timeSteps) {
-			if (t.getTimeInMetadata() == time) {
-				wantedTimestep = t;
-			}
+	/**
+	 * @return the date of the given time (in days) in the metadata.
+	 */
+	static Calendar getCalendar(double time) {
+		Calendar epoch = new GregorianCalendar(01, 01, 0000);
+		epoch.add(Calendar.DAY_OF_MONTH, (int) time);
+		return epoch;
+	}
+
+	/**
+	 * @return the date of the given time, or "n/a" if this variable has no
+	 *         data for it (times of other datasets, for example).
+	 */
+	public String getTime(double time) {
+		int frameIndex = getTimeIndex(time);
+		if (frameIndex < 0) {
+			return "n/a";
 		}
 
-		Calendar epoch = new GregorianCalendar(01, 01, 0000);
-		int days = (int) wantedTimestep.getTimeInMetadata();
-		epoch.add(Calendar.DAY_OF_MONTH, days);
+		Calendar epoch = getCalendar(timeIndex.times[frameIndex]);
 
 		NumberFormat formatter = new DecimalFormat("0000");
 		String yearString = formatter.format(epoch.get(Calendar.YEAR));
@@ -0,0 +1,207 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ucar.nc2.NetcdfFile;
+
+/**
+ * Bounded pool of open {@link NetcdfFile} handles. A handle is checked out
+ * exclusively (NetcdfFile is not safe for concurrent reads) and returned to
+ * the pool afterwards, so the header of a file only needs to be parsed once.
+ * When the number of open handles reaches the limit, the least recently
+ * returned idle handle is closed.
+ */
+public class NetcdfFilePool {
+    private final static Logger logger = LoggerFactory.getLogger(NetcdfFilePool.class);
+
+    // A thread that holds a handle and waits for another one can wait
+    // forever on a small pool, so give up after this long.
+    private static final long ACQUIRE_TIMEOUT_MILLIS = 30000;
+
+    private final int maxOpenFiles;
+
+    private final Map<File, ArrayDeque<NetcdfFile>> idleByFile;
+    private final LinkedHashMap<NetcdfFile, File> idleInLruOrder;
+
+    private int openFiles = 0;
+    private boolean closed = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public NetcdfFilePool(int maxOpenFiles) {
+        this.maxOpenFiles = Math.max(1, maxOpenFiles);
+
+        idleByFile = new HashMap<File, ArrayDeque<NetcdfFile>>();
+        idleInLruOrder = new LinkedHashMap<NetcdfFile, File>();
+    }
+
+    /**
+     * Check out a handle for the given file, opening it if no idle handle is
+     * available. Blocks when the pool is at its limit and every handle is in
+     * use, for at most ACQUIRE_TIMEOUT_MILLIS, after which an IOException is
+     * thrown. The handle must be given back with {@link #release} or
+     * {@link #discard}.
+     */
+    public NetcdfFile acquire(File file) throws IOException {
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("NetCDF file pool has been closed.");
+            }
+
+            ArrayDeque<NetcdfFile> idle = idleByFile.get(file);
+            if (idle != null && !idle.isEmpty()) {
+                NetcdfFile handle = idle.pollLast();
+                if (idle.isEmpty()) {
+                    idleByFile.remove(file);
+                }
+                idleInLruOrder.remove(handle);
+                hits.incrementAndGet();
+                return handle;
+            }
+
+            misses.incrementAndGet();
+            long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT_MILLIS;
+            while (openFiles >= maxOpenFiles) {
+                if (!evictEldestIdle()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new IOException("No NetCDF file handle available for " + file.getName() + " after "
+                                + ACQUIRE_TIMEOUT_MILLIS + " ms, all " + maxOpenFiles
+                                + " are in use (see MAX_OPEN_NETCDF_FILES).");
+                    }
+                    try {
+                        wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for a NetCDF file handle.");
+                    }
+                    if (closed) {
+                        throw new IOException("NetCDF file pool has been closed.");
+                    }
+                }
+            }
+            // Reserve the slot now, the (slow) open happens outside the lock.
+            openFiles++;
+        }
+
+        try {
+            return NetcdfFile.open(file.getAbsolutePath());
+        } catch (IOException e) {
+            synchronized (this) {
+                openFiles--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Return a healthy handle to the pool for reuse.
+     */
+    public void release(File file, NetcdfFile handle) {
+        synchronized (this) {
+            if (!closed) {
+                ArrayDeque<NetcdfFile> idle = idleByFile.get(file);
+                if (idle == null) {
+                    idle = new ArrayDeque<NetcdfFile>();
+                    idleByFile.put(file, idle);
+                }
+                idle.addLast(handle);
+                idleInLruOrder.put(handle, file);
+                notifyAll();
+                return;
+            }
+            openFiles--;
+        }
+        closeQuietly(handle);
+    }
+
+    /**
+     * Close a handle that should not be reused, for instance after a read
+     * error.
+     */
+    public void discard(File file, NetcdfFile handle) {
+        synchronized (this) {
+            openFiles--;
+            notifyAll();
+        }
+        closeQuietly(handle);
+    }
+
+    /**
+     * Close every idle handle and refuse new checkouts. Handles that are still
+     * checked out are closed when they are returned.
+     */
+    public synchronized void close() {
+        closed = true;
+        while (evictEldestIdle()) {
+        }
+        notifyAll();
+
+        logger.debug("NetCDF file pool closed, hits: " + hits.get() + " misses: " + misses.get() + " evictions: "
+                + evictions.get());
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public synchronized int getOpenFiles() {
+        return openFiles;
+    }
+
+    public int getMaxOpenFiles() {
+        return maxOpenFiles;
+    }
+
+    private boolean evictEldestIdle() {
+        Iterator<Map.Entry<NetcdfFile, File>> it = idleInLruOrder.entrySet().iterator();
+        if (!it.hasNext()) {
+            return false;
+        }
+        Map.Entry<NetcdfFile, File> eldest = it.next();
+        it.remove();
+
+        NetcdfFile handle = eldest.getKey();
+        ArrayDeque<NetcdfFile> idle = idleByFile.get(eldest.getValue());
+        if (idle != null) {
+            idle.remove(handle);
+            if (idle.isEmpty()) {
+                idleByFile.remove(eldest.getValue());
+            }
+        }
+
+        openFiles--;
+        evictions.incrementAndGet();
+        closeQuietly(handle);
+        return true;
+    }
+
+    private void closeQuietly(NetcdfFile handle) {
+        try {
+            handle.close();
+        } catch (IOException e) {
+            logger.debug("IOException caught while closing NetCDF file: " + e.getMessage());
+        }
+    }
+}
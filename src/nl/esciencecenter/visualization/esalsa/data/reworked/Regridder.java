@@ -0,0 +1,480 @@
+package nl.esciencecenter.visualization.esalsa.data.reworked;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import nl.esciencecenter.visualization.esalsa.data.FetchScheduler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps data on a curvilinear grid (like the displaced-pole POP and CICE
+ * grids) onto a regular latitude/longitude grid of the same size, so it can
+ * be drawn like any other variable. The bilinear remap weights are computed
+ * once per grid and stored as a sparse (CSR) matrix, both in memory and in a
+ * file next to the data. Regridding a frame is then a sparse matrix-vector
+ * product, done in parallel on the compute pool of the fetch scheduler.
+ */
+public class Regridder {
+    private final static Logger logger = LoggerFactory.getLogger(Regridder.class);
+
+    private static final int MAGIC = 0x45535247;
+    private static final int VERSION = 1;
+
+    // Source points are bucketed per degree to find the nearest one quickly.
+    private static final int BUCKETS_LAT = 180;
+    private static final int BUCKETS_LON = 360;
+    private static final int MAX_SEARCH_RINGS = 3;
+    private static final int NEWTON_ITERATIONS = 10;
+    private static final float INSIDE_EPSILON = 1e-3f;
+    private static final int ROWS_PER_TASK = 16384;
+
+    private final int latSize;
+    private final int lonSize;
+    private final float lonOrigin;
+
+    // Weights of row r are weights[rowStart[r]] .. weights[rowStart[r+1]-1],
+    // for the source cells in columns[].
+    private final int[] rowStart;
+    private final int[] columns;
+    private final float[] weights;
+
+    private Regridder(int latSize, int lonSize, float lonOrigin, int[] rowStart, int[] columns, float[] weights) {
+        this.latSize = latSize;
+        this.lonSize = lonSize;
+        this.lonOrigin = lonOrigin;
+        this.rowStart = rowStart;
+        this.columns = columns;
+        this.weights = weights;
+    }
+
+    /**
+     * @return the file the weights of the given grid are cached in.
+     */
+    public static File getWeightsFile(File directory, Grid grid) {
+        return new File(directory, ".regrid-" + Long.toHexString(grid.getChecksum()) + "-" + grid.getLatSize() + "x"
+                + grid.getLonSize() + ".weights");
+    }
+
+    /**
+     * Load the regridder of the given (curvilinear) grid from its weights
+     * file, or compute it and write the weights file if there is no valid one.
+     */
+    public static Regridder forGrid(Grid grid, File directory, FetchScheduler scheduler,
+            FetchScheduler.Priority priority) throws InterruptedException {
+        File weightsFile = getWeightsFile(directory, grid);
+        Regridder regridder = load(weightsFile, grid);
+        if (regridder != null) {
+            return regridder;
+        }
+
+        long startTime = System.currentTimeMillis();
+        regridder = compute(grid, scheduler, priority);
+        logger.debug("Computed regrid weights for " + grid.getLatSize() + "x" + grid.getLonSize() + " grid in "
+                + (System.currentTimeMillis() - startTime) + " ms.");
+
+        try {
+            regridder.save(weightsFile, grid);
+        } catch (IOException e) {
+            logger.warn("Could not write regrid weights to " + weightsFile + ": " + e.getMessage());
+        }
+        return regridder;
+    }
+
+    private static Regridder load(File weightsFile, Grid grid) {
+        if (!weightsFile.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(weightsFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != grid.getChecksum()
+                    || in.readInt() != grid.getLatSize() || in.readInt() != grid.getLonSize()) {
+                logger.debug("Ignoring regrid weights that do not match the grid: " + weightsFile);
+                return null;
+            }
+            float lonOrigin = in.readFloat();
+            int numRows = grid.getLatSize() * grid.getLonSize();
+            int[] rowStart = new int[numRows + 1];
+            for (int r = 0; r <= numRows; r++) {
+                rowStart[r] = in.readInt();
+            }
+            int[] columns = new int[rowStart[numRows]];
+            float[] weights = new float[rowStart[numRows]];
+            for (int k = 0; k < columns.length; k++) {
+                columns[k] = in.readInt();
+            }
+            for (int k = 0; k < weights.length; k++) {
+                weights[k] = in.readFloat();
+            }
+            return new Regridder(grid.getLatSize(), grid.getLonSize(), lonOrigin, rowStart, columns, weights);
+        } catch (IOException e) {
+            logger.debug("IOException caught while reading regrid weights: " + e.getMessage());
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    logger.debug("IOException caught while reading regrid weights: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void save(File weightsFile, Grid grid) throws IOException {
+        File tempFile = new File(weightsFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(grid.getChecksum());
+            out.writeInt(latSize);
+            out.writeInt(lonSize);
+            out.writeFloat(lonOrigin);
+            for (int start : rowStart) {
+                out.writeInt(start);
+            }
+            for (int column : columns) {
+                out.writeInt(column);
+            }
+            for (float weight : weights) {
+                out.writeFloat(weight);
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tempFile.toPath(), weightsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Source points sorted into one degree buckets: the points of bucket b are
+     * points[bucketStart[b]] .. points[bucketStart[b+1]-1].
+     */
+    private static class SourceIndex {
+        private final float[] lats;
+        private final float[] lons;
+        private final int latSize;
+        private final int lonSize;
+        private final int[] bucketStart;
+        private final int[] points;
+
+        public SourceIndex(Grid grid) {
+            lats = grid.getLatitudesPerCell();
+            lons = grid.getLongitudesPerCell();
+            latSize = grid.getLatSize();
+            lonSize = grid.getLonSize();
+
+            int numPoints = latSize * lonSize;
+            int[] bucketOfPoint = new int[numPoints];
+            bucketStart = new int[BUCKETS_LAT * BUCKETS_LON + 1];
+            for (int p = 0; p < numPoints; p++) {
+                if (isValid(p)) {
+                    bucketOfPoint[p] = getBucket(lats[p], lons[p]);
+                    bucketStart[bucketOfPoint[p] + 1]++;
+                } else {
+                    bucketOfPoint[p] = -1;
+                }
+            }
+            for (int b = 0; b < BUCKETS_LAT * BUCKETS_LON; b++) {
+                bucketStart[b + 1] += bucketStart[b];
+            }
+            points = new int[bucketStart[BUCKETS_LAT * BUCKETS_LON]];
+            int[] fill = Arrays.copyOf(bucketStart, BUCKETS_LAT * BUCKETS_LON);
+            for (int p = 0; p < numPoints; p++) {
+                if (bucketOfPoint[p] >= 0) {
+                    points[fill[bucketOfPoint[p]]++] = p;
+                }
+            }
+        }
+
+        private boolean isValid(int p) {
+            return lats[p] >= -90f && lats[p] <= 90f && !Float.isNaN(lons[p]) && !Float.isInfinite(lons[p])
+                    && Math.abs(lons[p]) < 1000f;
+        }
+
+        private static int getBucket(float lat, float lon) {
+            int latBucket = Math.min(BUCKETS_LAT - 1, Math.max(0, (int) Math.floor(lat + 90f)));
+            int lonBucket = ((int) Math.floor(wrap(lon)) % BUCKETS_LON + BUCKETS_LON) % BUCKETS_LON;
+            return latBucket * BUCKETS_LON + lonBucket;
+        }
+
+        /**
+         * @return the source point closest to the given position, or -1 if
+         *         there is none nearby.
+         */
+        public int findNearest(float lat, float lon) {
+            int latBucket = Math.min(BUCKETS_LAT - 1, Math.max(0, (int) Math.floor(lat + 90f)));
+            int lonBucket = ((int) Math.floor(wrap(lon)) % BUCKETS_LON + BUCKETS_LON) % BUCKETS_LON;
+
+            int nearest = -1;
+            float nearestDistance = Float.POSITIVE_INFINITY;
+            for (int ring = 1; ring <= MAX_SEARCH_RINGS && nearest < 0; ring++) {
+                for (int bLat = Math.max(0, latBucket - ring); bLat <= Math.min(BUCKETS_LAT - 1, latBucket + ring); bLat++) {
+                    for (int dLon = -ring; dLon <= ring; dLon++) {
+                        int b = bLat * BUCKETS_LON + ((lonBucket + dLon) % BUCKETS_LON + BUCKETS_LON) % BUCKETS_LON;
+                        for (int k = bucketStart[b]; k < bucketStart[b + 1]; k++) {
+                            int p = points[k];
+                            float distance = getDistance(lat, lon, lats[p], lons[p]);
+                            if (distance < nearestDistance) {
+                                nearestDistance = distance;
+                                nearest = p;
+                            }
+                        }
+                    }
+                }
+            }
+            return nearest;
+        }
+    }
+
+    private static float wrap(float lon) {
+        float result = lon % 360f;
+        return result < 0f ? result + 360f : result;
+    }
+
+    /**
+     * @return the longitude difference b - a, in -180 .. 180.
+     */
+    private static float lonDifference(float a, float b) {
+        float difference = wrap(b - a);
+        return difference > 180f ? difference - 360f : difference;
+    }
+
+    private static float getDistance(float lat, float lon, float otherLat, float otherLon) {
+        float dLat = otherLat - lat;
+        float dLon = lonDifference(lon, otherLon) * (float) Math.cos(Math.toRadians(lat));
+        return dLat * dLat + dLon * dLon;
+    }
+
+    private static Regridder compute(final Grid grid, FetchScheduler scheduler, FetchScheduler.Priority priority)
+            throws InterruptedException {
+        final int latSize = grid.getLatSize();
+        final int lonSize = grid.getLonSize();
+        final int numRows = latSize * lonSize;
+        final SourceIndex index = new SourceIndex(grid);
+
+        // Keep the longitude of the first column of the source, so the
+        // regridded data lines up with the way the source was drawn.
+        float[] lons = grid.getLongitudesPerCell();
+        final float lonOrigin = wrap(lons[(latSize / 2) * lonSize]);
+
+        // At most four weights per row, compacted afterwards.
+        final int[] rowColumns = new int[4 * numRows];
+        final float[] rowWeights = new float[4 * numRows];
+        final byte[] rowCounts = new byte[numRows];
+
+        new RowTask() {
+            @Override
+            protected void computeRows(int from, int to) {
+                for (int r = from; r < to; r++) {
+                    float lat = -90f + (r / lonSize + 0.5f) * 180f / latSize;
+                    float lon = lonOrigin + (r % lonSize + 0.5f) * 360f / lonSize;
+                    rowCounts[r] = (byte) computeWeights(index, lat, lon, rowColumns, rowWeights, 4 * r);
+                }
+            }
+        }.invoke(numRows, scheduler, priority);
+
+        int[] rowStart = new int[numRows + 1];
+        for (int r = 0; r < numRows; r++) {
+            rowStart[r + 1] = rowStart[r] + rowCounts[r];
+        }
+        int[] columns = new int[rowStart[numRows]];
+        float[] weights = new float[rowStart[numRows]];
+        for (int r = 0; r < numRows; r++) {
+            System.arraycopy(rowColumns, 4 * r, columns, rowStart[r], rowCounts[r]);
+            System.arraycopy(rowWeights, 4 * r, weights, rowStart[r], rowCounts[r]);
+        }
+
+        return new Regridder(latSize, lonSize, lonOrigin, rowStart, columns, weights);
+    }
+
+    /**
+     * Find the bilinear weights of the source cells around the given target
+     * position: the quad of source points that contains the target is found
+     * among the four quads around the nearest source point. Falls back to the
+     * nearest point if the target is not inside any of those.
+     *
+     * @return the number of weights written.
+     */
+    private static int computeWeights(SourceIndex index, float lat, float lon, int[] columns, float[] weights,
+            int offset) {
+        int nearest = index.findNearest(lat, lon);
+        if (nearest < 0) {
+            return 0;
+        }
+
+        int j = nearest / index.lonSize;
+        int i = nearest % index.lonSize;
+        float cosLat = (float) Math.cos(Math.toRadians(lat));
+        float[] st = new float[2];
+        for (int dj = -1; dj <= 0; dj++) {
+            for (int di = -1; di <= 0; di++) {
+                int j0 = j + dj;
+                if (j0 < 0 || j0 + 1 >= index.latSize) {
+                    continue;
+                }
+                // The grid is periodic in the longitude direction.
+                int i0 = (i + di + index.lonSize) % index.lonSize;
+                int i1 = (i0 + 1) % index.lonSize;
+                int p00 = j0 * index.lonSize + i0;
+                int p10 = j0 * index.lonSize + i1;
+                int p01 = (j0 + 1) * index.lonSize + i0;
+                int p11 = (j0 + 1) * index.lonSize + i1;
+                if (!index.isValid(p00) || !index.isValid(p10) || !index.isValid(p01) || !index.isValid(p11)) {
+                    continue;
+                }
+
+                if (invertBilinear(index, lat, lon, cosLat, p00, p10, p01, p11, st)) {
+                    float s = st[0], t = st[1];
+                    columns[offset] = p00;
+                    weights[offset] = (1f - s) * (1f - t);
+                    columns[offset + 1] = p10;
+                    weights[offset + 1] = s * (1f - t);
+                    columns[offset + 2] = p01;
+                    weights[offset + 2] = (1f - s) * t;
+                    columns[offset + 3] = p11;
+                    weights[offset + 3] = s * t;
+                    return 4;
+                }
+            }
+        }
+
+        columns[offset] = nearest;
+        weights[offset] = 1f;
+        return 1;
+    }
+
+    /**
+     * Solve (s, t) for the target position within the quad p00, p10, p01,
+     * p11, in a local plane around the target, with Newton iterations.
+     *
+     * @return whether the target lies within the quad.
+     */
+    private static boolean invertBilinear(SourceIndex index, float lat, float lon, float cosLat, int p00, int p10,
+            int p01, int p11, float[] st) {
+        float x00 = lonDifference(lon, index.lons[p00]) * cosLat, y00 = index.lats[p00] - lat;
+        float x10 = lonDifference(lon, index.lons[p10]) * cosLat, y10 = index.lats[p10] - lat;
+        float x01 = lonDifference(lon, index.lons[p01]) * cosLat, y01 = index.lats[p01] - lat;
+        float x11 = lonDifference(lon, index.lons[p11]) * cosLat, y11 = index.lats[p11] - lat;
+
+        float s = 0.5f, t = 0.5f;
+        for (int iteration = 0; iteration < NEWTON_ITERATIONS; iteration++) {
+            // Position of (s, t) in the quad, relative to the target (at 0, 0)
+            float x = (1 - s) * (1 - t) * x00 + s * (1 - t) * x10 + (1 - s) * t * x01 + s * t * x11;
+            float y = (1 - s) * (1 - t) * y00 + s * (1 - t) * y10 + (1 - s) * t * y01 + s * t * y11;
+
+            float dxds = (1 - t) * (x10 - x00) + t * (x11 - x01);
+            float dyds = (1 - t) * (y10 - y00) + t * (y11 - y01);
+            float dxdt = (1 - s) * (x01 - x00) + s * (x11 - x10);
+            float dydt = (1 - s) * (y01 - y00) + s * (y11 - y10);
+
+            float determinant = dxds * dydt - dxdt * dyds;
+            if (determinant == 0f || Float.isNaN(determinant)) {
+                return false;
+            }
+            s -= (x * dydt - y * dxdt) / determinant;
+            t -= (y * dxds - x * dyds) / determinant;
+        }
+
+        if (s < -INSIDE_EPSILON || s > 1f + INSIDE_EPSILON || t < -INSIDE_EPSILON || t > 1f + INSIDE_EPSILON) {
+            return false;
+        }
+        st[0] = Math.min(1f, Math.max(0f, s));
+        st[1] = Math.min(1f, Math.max(0f, t));
+        return true;
+    }
+
+    /**
+     * Splits a range of rows into blocks on the compute pool of the
+     * scheduler, with the priority of the work that needs them.
+     */
+    private abstract static class RowTask {
+        protected abstract void computeRows(int from, int to);
+
+        public void invoke(int numRows, FetchScheduler scheduler, FetchScheduler.Priority priority)
+                throws InterruptedException {
+            List<Callable<Void>> blocks = new ArrayList<Callable<Void>>();
+            for (int from = 0; from < numRows; from += ROWS_PER_TASK) {
+                final int blockFrom = from;
+                final int blockTo = Math.min(numRows, from + ROWS_PER_TASK);
+                blocks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        computeRows(blockFrom, blockTo);
+                        return null;
+                    }
+                });
+            }
+
+            for (Future<Void> block : scheduler.invokeAll(FetchScheduler.Stage.CPU, priority, blocks)) {
+                try {
+                    block.get();
+                } catch (ExecutionException e) {
+                    // The rows throw nothing checked.
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    throw (Error) e.getCause();
+                }
+            }
+        }
+    }
+
+    /**
+     * Regrid a (lat, lon) slice. Source cells holding the fill value do not
+     * contribute, the other weights of a target cell are scaled up to make
+     * up for them. Target cells without any valid source get the fill value.
+     */
+    public float[] regrid(final float[] src, final float fillValue, FetchScheduler scheduler,
+            FetchScheduler.Priority priority) throws InterruptedException {
+        final float[] dst = new float[latSize * lonSize];
+        new RowTask() {
+            @Override
+            protected void computeRows(int from, int to) {
+                for (int r = from; r < to; r++) {
+                    float sum = 0f;
+                    float weightSum = 0f;
+                    for (int k = rowStart[r]; k < rowStart[r + 1]; k++) {
+                        float value = src[columns[k]];
+                        if (value != fillValue && !Float.isNaN(value)) {
+                            sum += weights[k] * value;
+                            weightSum += weights[k];
+                        }
+                    }
+                    dst[r] = weightSum > 0f ? sum / weightSum : fillValue;
+                }
+            }
+        }.invoke(dst.length, scheduler, priority);
+        return dst;
+    }
+
+    public int getLatSize() {
+        return latSize;
+    }
+
+    public int getLonSize() {
+        return lonSize;
+    }
+
+    public float getLonOrigin() {
+        return lonOrigin;
+    }
+}